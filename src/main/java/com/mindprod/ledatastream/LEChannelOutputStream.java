@@ -0,0 +1,510 @@
+/*
+ * [LEChannelOutputStream.java]
+ *
+ * Summary: Little-endian DataOutput that writes to a FileChannel through a large direct buffer.
+ *
+ * Not part of the ledatastream package of Canadian Mind Products: a local addition to the copy of it that comes with
+ * the CSI Spectrum Analyzer, under the license of the Analyzer below.
+ *
+ * Requires: JDK 1.7+
+ */
+package com.mindprod.ledatastream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI Spectrum Analyzer.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/**
+ * Little-endian DataOutput that writes to a FileChannel.
+ * <p/>
+ * Writes the same bytes as LEDataOutputStream, but collects them in a large direct buffer that is handed to the
+ * channel only when it is full, so that large results are written at the speed of the disk. Arrays of shorts, ints,
+ * longs, floats and doubles are encoded in bulk. Unlike LEDataOutputStream no method is synchronized: an instance
+ * must only be used by one thread at a time.
+ */
+public final class LEChannelOutputStream implements DataOutput, Closeable {
+    /**
+     * default size in bytes of the buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+    /**
+     * the channel we write to.
+     */
+    private final FileChannel channel;
+    /**
+     * little-endian direct buffer collecting output for the channel.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * count of bytes handed to the channel so far.
+     */
+    private long written;
+
+    /**
+     * constructor, with a buffer of DEFAULT_BUFFER_SIZE bytes.
+     *
+     * @param channel
+     *            the channel we write little endian binary data onto, from its current position.
+     */
+    public LEChannelOutputStream(final FileChannel channel) {
+	this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * constructor.
+     *
+     * @param channel
+     *            the channel we write little endian binary data onto, from its current position.
+     * @param bufferSize
+     *            size in bytes of the buffer, at least 8.
+     */
+    public LEChannelOutputStream(final FileChannel channel, final int bufferSize) {
+	if (bufferSize < 8) {
+	    throw new IllegalArgumentException("buffer size " + bufferSize + " is less than 8");
+	}
+	this.channel = channel;
+	buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * constructor, creating or truncating file.
+     *
+     * @param file
+     *            the file we write little endian binary data to.
+     *
+     * @throws IOException
+     *             if the file can't be opened for writing.
+     */
+    public LEChannelOutputStream(final File file) throws IOException {
+	this(new FileOutputStream(file).getChannel());
+    }
+
+    /**
+     * Flush and close the channel.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    flush();
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Hand all buffered bytes to the channel.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public void flush() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining()) {
+	    written += channel.write(buffer);
+	}
+	buffer.clear();
+    }
+
+    /**
+     * Get the channel we write to. Flush before using it directly.
+     *
+     * @return the channel.
+     */
+    public FileChannel getChannel() {
+	return channel;
+    }
+
+    /**
+     * Count of bytes written so far, including those still in the buffer.
+     *
+     * @return count of bytes.
+     */
+    public long size() {
+	return written + buffer.position();
+    }
+
+    /**
+     * This method writes only one byte, even though it says int (non-Javadoc)
+     *
+     * @param ib
+     *            the byte to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     * @see java.io.DataOutput#write(int)
+     */
+    @Override
+    public void write(final int ib) throws IOException {
+	room(1).put((byte) ib);
+    }
+
+    /**
+     * Write out an array of bytes.
+     *
+     * @throws IOException
+     *             if write fails.
+     * @see java.io.DataOutput#write(byte[])
+     */
+    @Override
+    public void write(final byte ba[]) throws IOException {
+	write(ba, 0, ba.length);
+    }
+
+    /**
+     * Writes out part of an array of bytes. Arrays larger than the buffer go to the channel without being copied.
+     *
+     * @throws IOException
+     *             if write fails.
+     * @see java.io.DataOutput#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte ba[], final int off, final int len) throws IOException {
+	checkRange(ba.length, off, len);
+	if (len > buffer.capacity()) {
+	    flush();
+	    final ByteBuffer src = ByteBuffer.wrap(ba, off, len);
+	    while (src.hasRemaining()) {
+		written += channel.write(src);
+	    }
+	    return;
+	}
+	room(len).put(ba, off, len);
+    }
+
+    /**
+     * Write a booleans as one byte.
+     *
+     * @param v
+     *            boolean to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeBoolean(final boolean v) throws IOException {
+	write(v ? 1 : 0);
+    }
+
+    /**
+     * Write a byte.
+     *
+     * @param v
+     *            the byte to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeByte(final int v) throws IOException {
+	write(v);
+    }
+
+    /**
+     * Write a string, as 8-bit chars.
+     *
+     * @param s
+     *            the string to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeBytes(final String s) throws IOException {
+	final int len = s.length();
+	for (int i = 0; i < len; i++) {
+	    write((byte) s.charAt(i));
+	}
+    }
+
+    /**
+     * Write a char. Like DataOutputStream.writeChar. Note the parm is an int even though this as a writeChar
+     *
+     * @param v
+     *            the char to write
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeChar(final int v) throws IOException {
+	room(2).putChar((char) v);
+    }
+
+    /**
+     * Write a string, not a char[]. Like DataOutputStream.writeChars, flip endianness of each char.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeChars(final String s) throws IOException {
+	final int len = s.length();
+	for (int i = 0; i < len; i++) {
+	    writeChar(s.charAt(i));
+	}
+    }
+
+    /**
+     * Write a double.
+     *
+     * @param v
+     *            the double to write. Like DataOutputStream.writeDouble.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeDouble(final double v) throws IOException {
+	room(8).putDouble(v);
+    }
+
+    /**
+     * Write a float. Like DataOutputStream.writeFloat.
+     *
+     * @param v
+     *            the float to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeFloat(final float v) throws IOException {
+	room(4).putFloat(v);
+    }
+
+    /**
+     * Write an int, 32-bits. Like DataOutputStream.writeInt.
+     *
+     * @param v
+     *            the int to write
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeInt(final int v) throws IOException {
+	room(4).putInt(v);
+    }
+
+    /**
+     * Write a long, 64-bits. like DataOutputStream.writeLong.
+     *
+     * @param v
+     *            the long to write
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeLong(final long v) throws IOException {
+	room(8).putLong(v);
+    }
+
+    /**
+     * Write short, 16-bits. Like DataOutputStream.writeShort. also acts as a writeUnsignedShort
+     *
+     * @param v
+     *            the short you want written in little endian binary format
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    @Override
+    public void writeShort(final int v) throws IOException {
+	room(2).putShort((short) v);
+    }
+
+    /**
+     * Write shorts, 16-bits each, little endian.
+     *
+     * @param sa
+     *            the shorts to write.
+     * @param off
+     *            offset in sa.
+     * @param len
+     *            count of shorts to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public void writeShorts(final short sa[], final int off, final int len) throws IOException {
+	checkRange(sa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, room(2).remaining() / 2);
+	    buffer.asShortBuffer().put(sa, off + done, n);
+	    buffer.position(buffer.position() + 2 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write ints, 32-bits each, little endian.
+     *
+     * @param ia
+     *            the ints to write.
+     * @param off
+     *            offset in ia.
+     * @param len
+     *            count of ints to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public void writeInts(final int ia[], final int off, final int len) throws IOException {
+	checkRange(ia.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, room(4).remaining() / 4);
+	    buffer.asIntBuffer().put(ia, off + done, n);
+	    buffer.position(buffer.position() + 4 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write longs, 64-bits each, little endian.
+     *
+     * @param la
+     *            the longs to write.
+     * @param off
+     *            offset in la.
+     * @param len
+     *            count of longs to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public void writeLongs(final long la[], final int off, final int len) throws IOException {
+	checkRange(la.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, room(8).remaining() / 8);
+	    buffer.asLongBuffer().put(la, off + done, n);
+	    buffer.position(buffer.position() + 8 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write floats, little endian.
+     *
+     * @param fa
+     *            the floats to write.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of floats to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public void writeFloats(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, room(4).remaining() / 4);
+	    buffer.asFloatBuffer().put(fa, off + done, n);
+	    buffer.position(buffer.position() + 4 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write doubles, little endian.
+     *
+     * @param da
+     *            the doubles to write.
+     * @param off
+     *            offset in da.
+     * @param len
+     *            count of doubles to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public void writeDoubles(final double da[], final int off, final int len) throws IOException {
+	checkRange(da.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, room(8).remaining() / 8);
+	    buffer.asDoubleBuffer().put(da, off + done, n);
+	    buffer.position(buffer.position() + 8 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write a string as a UTF counted string, with the count big-endian as DataOutputStream writes it.
+     *
+     * @param s
+     *            the string to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     * @see java.io.DataOutput#writeUTF(java.lang.String)
+     */
+    @Override
+    public void writeUTF(final String s) throws IOException {
+	final ByteArrayOutputStream utf = new ByteArrayOutputStream(s.length() + 2);
+	new DataOutputStream(utf).writeUTF(s);
+	write(utf.toByteArray());
+    }
+
+    /**
+     * Make room in the buffer for at least n bytes, flushing it if needed.
+     *
+     * @param n
+     *            count of bytes needed, at most the capacity of the buffer.
+     *
+     * @return the buffer.
+     * @throws IOException
+     *             if write fails.
+     */
+    private ByteBuffer room(final int n) throws IOException {
+	if (buffer.remaining() < n) {
+	    flush();
+	}
+	return buffer;
+    }
+
+    /**
+     * Check that off and len describe a part of an array of the given length.
+     */
+    private static void checkRange(final int length, final int off, final int len) {
+	if (off < 0 || len < 0 || len > length - off) {
+	    throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + length);
+	}
+    }
+} // end LEChannelOutputStream
@@ -21,6 +21,11 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
  * Little-Endian version of DataInputStream.
@@ -52,6 +57,14 @@ public final class LEDataInputStream implements DataInput {
      * @noinspection WeakerAccess
      */
     protected final byte[] work;
+    /**
+     * size in bytes of the blocks in which the bulk methods read.
+     */
+    private static final int BLOCK_SIZE = 8192;
+    /**
+     * little-endian view of the block read last by one of the bulk methods, allocated on first use.
+     */
+    private ByteBuffer block;
 
     /**
      * constructor.
@@ -285,6 +298,274 @@ public final class LEDataInputStream implements DataInput {
 	return ((work[1] & 0xff) << 8 | (work[0] & 0xff));
     }
 
+    /**
+     * Read shorts, 16-bits each, until the count is satisfied. Like len calls of readShort, but the bytes are read and
+     * decoded a block at a time.
+     *
+     * @param sa
+     *            where the shorts go.
+     * @param off
+     *            offset in sa.
+     * @param len
+     *            count of shorts to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readShorts(final short sa[], final int off, final int len) throws IOException {
+	checkRange(sa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 2);
+	    readBlock(2 * n).asShortBuffer().get(sa, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read ints, 32-bits each, until the count is satisfied. Like len calls of readInt, but the bytes are read and
+     * decoded a block at a time.
+     *
+     * @param ia
+     *            where the ints go.
+     * @param off
+     *            offset in ia.
+     * @param len
+     *            count of ints to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readInts(final int ia[], final int off, final int len) throws IOException {
+	checkRange(ia.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 4);
+	    readBlock(4 * n).asIntBuffer().get(ia, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read longs, 64-bits each, until the count is satisfied. Like len calls of readLong, but the bytes are read and
+     * decoded a block at a time.
+     *
+     * @param la
+     *            where the longs go.
+     * @param off
+     *            offset in la.
+     * @param len
+     *            count of longs to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readLongs(final long la[], final int off, final int len) throws IOException {
+	checkRange(la.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 8);
+	    readBlock(8 * n).asLongBuffer().get(la, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read floats until the count is satisfied. Like len calls of readFloat, but the bytes are read and decoded a
+     * block at a time.
+     *
+     * @param fa
+     *            where the floats go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of floats to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readFloats(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 4);
+	    readBlock(4 * n).asFloatBuffer().get(fa, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read doubles until the count is satisfied. Like len calls of readDouble, but the bytes are read and decoded a
+     * block at a time.
+     *
+     * @param da
+     *            where the doubles go.
+     * @param off
+     *            offset in da.
+     * @param len
+     *            count of doubles to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readDoubles(final double da[], final int off, final int len) throws IOException {
+	checkRange(da.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 8);
+	    readBlock(8 * n).asDoubleBuffer().get(da, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read signed shorts, 16-bits each, into floats until the count is satisfied.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of shorts to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readShortsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 2);
+	    final ShortBuffer sb = readBlock(2 * n).asShortBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = sb.get(i);
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read unsigned shorts, 16-bits each, into floats until the count is satisfied.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of shorts to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readUnsignedShortsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 2);
+	    final ShortBuffer sb = readBlock(2 * n).asShortBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = sb.get(i) & 0xffff;
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read signed ints, 32-bits each, into floats until the count is satisfied. Values beyond 2^24 are rounded to the
+     * nearest float.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of ints to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readIntsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 4);
+	    final IntBuffer ib = readBlock(4 * n).asIntBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = ib.get(i);
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read unsigned ints, 32-bits each, into floats until the count is satisfied. Values beyond 2^24 are rounded to
+     * the nearest float.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of ints to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readUnsignedIntsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 4);
+	    final IntBuffer ib = readBlock(4 * n).asIntBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = ib.get(i) & 0xffffffffL;
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read doubles into floats until the count is satisfied, rounding each to the nearest float.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of doubles to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readDoublesAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 8);
+	    final DoubleBuffer db = readBlock(8 * n).asDoubleBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = (float) db.get(i);
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read count bytes, at most BLOCK_SIZE, into the block.
+     *
+     * @return little-endian view of the bytes read.
+     * @throws IOException
+     *             if read fails.
+     */
+    private ByteBuffer readBlock(final int count) throws IOException {
+	if (block == null) {
+	    block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	dis.readFully(block.array(), 0, count);
+	block.clear();
+	block.limit(count);
+	return block;
+    }
+
+    /**
+     * Check that off and len describe a part of an array of the given length.
+     */
+    private static void checkRange(final int length, final int off, final int len) {
+	if (off < 0 || len < 0 || len > length - off) {
+	    throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + length);
+	}
+    }
+
     /**
      * Skip over bytes in the stream. See the general contract of the <code>skipBytes</code> method of
      * <code>DataInput</code>.
@@ -29,6 +29,8 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Little-endian version of DataOutputStream.
@@ -54,6 +56,14 @@ public final class LEDataOutputStream implements DataOutput {
      * @noinspection WeakerAccess
      */
     protected final byte[] work;
+    /**
+     * size in bytes of the blocks in which the bulk methods write.
+     */
+    private static final int BLOCK_SIZE = 8192;
+    /**
+     * little-endian buffer the bulk methods encode a block into, allocated on first use.
+     */
+    private ByteBuffer block;
 
     /**
      * constructor.
@@ -296,6 +306,148 @@ public final class LEDataOutputStream implements DataOutput {
 	dis.write(work, 0, 2);
     }
 
+    /**
+     * Write shorts, 16-bits each, little endian.
+     * Like len calls of writeShort, but encoded and written a block at a time.
+     *
+     * @param sa
+     *            the shorts to write.
+     * @param off
+     *            offset in sa.
+     * @param len
+     *            count of shorts to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeShorts(final short sa[], final int off, final int len) throws IOException {
+	checkRange(sa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 2);
+	    block().asShortBuffer().put(sa, off + done, n);
+	    dis.write(block.array(), 0, 2 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write ints, 32-bits each, little endian.
+     * Like len calls of writeInt, but encoded and written a block at a time.
+     *
+     * @param ia
+     *            the ints to write.
+     * @param off
+     *            offset in ia.
+     * @param len
+     *            count of ints to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeInts(final int ia[], final int off, final int len) throws IOException {
+	checkRange(ia.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 4);
+	    block().asIntBuffer().put(ia, off + done, n);
+	    dis.write(block.array(), 0, 4 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write longs, 64-bits each, little endian.
+     * Like len calls of writeLong, but encoded and written a block at a time.
+     *
+     * @param la
+     *            the longs to write.
+     * @param off
+     *            offset in la.
+     * @param len
+     *            count of longs to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeLongs(final long la[], final int off, final int len) throws IOException {
+	checkRange(la.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 8);
+	    block().asLongBuffer().put(la, off + done, n);
+	    dis.write(block.array(), 0, 8 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write floats, little endian.
+     * Like len calls of writeFloat, but encoded and written a block at a time.
+     *
+     * @param fa
+     *            the floats to write.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of floats to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeFloats(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 4);
+	    block().asFloatBuffer().put(fa, off + done, n);
+	    dis.write(block.array(), 0, 4 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write doubles, little endian.
+     * Like len calls of writeDouble, but encoded and written a block at a time.
+     *
+     * @param da
+     *            the doubles to write.
+     * @param off
+     *            offset in da.
+     * @param len
+     *            count of doubles to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeDoubles(final double da[], final int off, final int len) throws IOException {
+	checkRange(da.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BLOCK_SIZE / 8);
+	    block().asDoubleBuffer().put(da, off + done, n);
+	    dis.write(block.array(), 0, 8 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Get the block buffer, cleared.
+     *
+     * @return the empty little-endian block buffer.
+     */
+    private ByteBuffer block() {
+	if (block == null) {
+	    block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	block.clear();
+	return block;
+    }
+
+    /**
+     * Check that off and len describe a part of an array of the given length.
+     */
+    private static void checkRange(final int length, final int off, final int len) {
+	if (off < 0 || len < 0 || len > length - off) {
+	    throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + length);
+	}
+    }
+
     /**
      * Write a string as a UTF counted string.
      *
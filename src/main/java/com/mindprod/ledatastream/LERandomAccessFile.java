@@ -17,16 +17,33 @@
  */
 package com.mindprod.ledatastream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Little-endian version of RandomAccessFile.
+ * <p/>
+ * All reads and writes go through the FileChannel of the file at an explicit long position. Reads are served from an
+ * internal buffer that is refilled a block at a time, so scalar reads and seeks within the block cost no system call.
+ * Writes go straight to the file. Arrays of shorts, ints, longs, floats and doubles are read and written in bulk, and
+ * a region of the file can be memory-mapped as a little-endian buffer.
  *
  * @author Roedy Green, Canadian Mind Products
  * @version 1.8 2007-05-24
@@ -45,6 +62,30 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      * @noinspection WeakerAccess
      */
     protected byte work[];
+    /**
+     * size in bytes of the read buffer, and of the blocks in which the bulk methods write.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * channel of raf, through which all I/O goes.
+     */
+    private final FileChannel channel;
+    /**
+     * true unless the file was opened read-only.
+     */
+    private final boolean writable;
+    /**
+     * little-endian read buffer. It holds the bytes of the file from bufferStart up to its limit.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * position in the file of the first byte of the buffer.
+     */
+    private long bufferStart;
+    /**
+     * position in the file of the next read or write.
+     */
+    private long pos;
 
     /**
      * constructor.
@@ -62,6 +103,10 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
     public LERandomAccessFile(final File file, final String rw) throws FileNotFoundException {
 	raf = new RandomAccessFile(file, rw);
 	work = new byte[8];
+	channel = raf.getChannel();
+	writable = !rw.equals("r");
+	buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	buffer.limit(0);
     }
 
     /**
@@ -77,8 +122,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      * @noinspection SameParameterValue
      */
     public LERandomAccessFile(final String file, final String rw) throws FileNotFoundException {
-	raf = new RandomAccessFile(file, rw);
-	work = new byte[8];
+	this(new File(file), rw);
     }
 
     /**
@@ -110,7 +154,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      *             if get fails.
      */
     public final long getFilePointer() throws IOException {
-	return raf.getFilePointer();
+	return pos;
     }
 
     /**
@@ -121,7 +165,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      *             if get fails.
      */
     public final long length() throws IOException {
-	return raf.length();
+	return channel.size();
     }
 
     /**
@@ -132,7 +176,11 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      *             if read fails.
      */
     public final int read() throws IOException {
-	return raf.read();
+	if (load(1) < 1) {
+	    return -1;
+	}
+	pos++;
+	return buffer.get() & 0xff;
     }
 
     /**
@@ -146,7 +194,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      *             if read fails.
      */
     public final int read(final byte ba[]) throws IOException {
-	return raf.read(ba);
+	return read(ba, 0, ba.length);
     }
 
     /**
@@ -164,7 +212,26 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      *             if read fails.
      */
     public final int read(final byte ba[], final int off, final int len) throws IOException {
-	return raf.read(ba, off, len);
+	checkRange(ba.length, off, len);
+	if (len == 0) {
+	    return 0;
+	}
+	final int n;
+	if (len >= BUFFER_SIZE && !isBuffered()) {
+	    // large reads bypass the buffer
+	    n = channel.read(ByteBuffer.wrap(ba, off, len), pos);
+	    if (n < 0) {
+		return -1;
+	    }
+	} else {
+	    n = load(Math.min(len, BUFFER_SIZE));
+	    if (n < 1) {
+		return -1;
+	    }
+	    buffer.get(ba, off, n);
+	}
+	pos += n;
+	return n;
     }
 
     /**
@@ -176,7 +243,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final boolean readBoolean() throws IOException {
-	return raf.readBoolean();
+	return readUnsignedByte() != 0;
     }
 
     /**
@@ -188,7 +255,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final byte readByte() throws IOException {
-	return raf.readByte();
+	return (byte) readUnsignedByte();
     }
 
     /**
@@ -200,7 +267,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final char readChar() throws IOException {
-	raf.readFully(work, 0, 2);
+	readFully(work, 0, 2);
 	return (char) ((work[1] & 0xff) << 8 | (work[0] & 0xff));
     }
 
@@ -239,7 +306,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void readFully(final byte ba[]) throws IOException {
-	raf.readFully(ba, 0, ba.length);
+	readFully(ba, 0, ba.length);
     }
 
     /**
@@ -257,7 +324,14 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void readFully(final byte ba[], final int off, final int len) throws IOException {
-	raf.readFully(ba, off, len);
+	int done = 0;
+	while (done < len) {
+	    final int n = read(ba, off + done, len - done);
+	    if (n < 0) {
+		throw new EOFException();
+	    }
+	    done += n;
+	}
     }
 
     /**
@@ -270,7 +344,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final int readInt() throws IOException {
-	raf.readFully(work, 0, 4);
+	readFully(work, 0, 4);
 	return (work[3]) << 24 | (work[2] & 0xff) << 16 | (work[1] & 0xff) << 8 | (work[0] & 0xff);
     }
 
@@ -283,7 +357,32 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final String readLine() throws IOException {
-	return raf.readLine();
+	// like RandomAccessFile.readLine, one byte per char
+	final StringBuilder sb = new StringBuilder();
+	int c = -1;
+	boolean eol = false;
+	while (!eol) {
+	    switch (c = read()) {
+	    case -1:
+	    case '\n':
+		eol = true;
+		break;
+	    case '\r':
+		eol = true;
+		final long cur = pos;
+		if (read() != '\n') {
+		    pos = cur;
+		}
+		break;
+	    default:
+		sb.append((char) c);
+		break;
+	    }
+	}
+	if (c == -1 && sb.length() == 0) {
+	    return null;
+	}
+	return sb.toString();
     }
 
     /**
@@ -295,7 +394,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final long readLong() throws IOException {
-	raf.readFully(work, 0, 8);
+	readFully(work, 0, 8);
 	return (long) (work[7]) << 56 |
 		/* long cast necessary or shift done modulo 32 */
 		(long) (work[6] & 0xff) << 48 | (long) (work[5] & 0xff) << 40 | (long) (work[4] & 0xff) << 32
@@ -312,7 +411,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final short readShort() throws IOException {
-	raf.readFully(work, 0, 2);
+	readFully(work, 0, 2);
 	return (short) ((work[1] & 0xff) << 8 | (work[0] & 0xff));
     }
 
@@ -325,7 +424,12 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final String readUTF() throws IOException {
-	return raf.readUTF();
+	// the length is big-endian, as written by RandomAccessFile.writeUTF
+	final byte[] utf = new byte[2 + readUnsignedByte() * 256 + readUnsignedByte()];
+	utf[0] = (byte) ((utf.length - 2) >> 8);
+	utf[1] = (byte) (utf.length - 2);
+	readFully(utf, 2, utf.length - 2);
+	return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(utf)));
     }
 
     /**
@@ -337,7 +441,11 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final int readUnsignedByte() throws IOException {
-	return raf.readUnsignedByte();
+	final int b = read();
+	if (b < 0) {
+	    throw new EOFException();
+	}
+	return b;
     }
 
     /**
@@ -350,7 +458,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final int readUnsignedShort() throws IOException {
-	raf.readFully(work, 0, 2);
+	readFully(work, 0, 2);
 	return ((work[1] & 0xff) << 8 | (work[0] & 0xff));
     }
 
@@ -365,7 +473,10 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      * @noinspection SameParameterValue
      */
     public final void seek(final long pos) throws IOException {
-	raf.seek(pos);
+	if (pos < 0) {
+	    throw new IOException("Negative seek offset");
+	}
+	this.pos = pos;
     }
 
     /**
@@ -380,7 +491,12 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final int skipBytes(final int n) throws IOException {
-	return raf.skipBytes(n);
+	if (n <= 0) {
+	    return 0;
+	}
+	final int skipped = (int) Math.max(0, Math.min(n, length() - pos));
+	pos += skipped;
+	return skipped;
     }
 
     /**
@@ -394,7 +510,8 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final synchronized void write(final int ib) throws IOException {
-	raf.write(ib);
+	work[0] = (byte) ib;
+	write(work, 0, 1);
     }
 
     /**
@@ -409,7 +526,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void write(final byte ba[]) throws IOException {
-	raf.write(ba, 0, ba.length);
+	write(ba, 0, ba.length);
     }
 
     /**
@@ -428,7 +545,8 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final synchronized void write(final byte ba[], final int off, final int len) throws IOException {
-	raf.write(ba, off, len);
+	checkRange(ba.length, off, len);
+	write(ByteBuffer.wrap(ba, off, len));
     }
 
     /**
@@ -443,7 +561,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void writeBoolean(final boolean v) throws IOException {
-	raf.writeBoolean(v);
+	write(v ? 1 : 0);
     }
 
     /**
@@ -458,7 +576,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void writeByte(final int v) throws IOException {
-	raf.writeByte(v);
+	write(v);
     }
 
     /**
@@ -473,7 +591,11 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void writeBytes(final String s) throws IOException {
-	raf.writeBytes(s);
+	final byte[] ba = new byte[s.length()];
+	for (int i = 0; i < ba.length; i++) {
+	    ba[i] = (byte) s.charAt(i);
+	}
+	write(ba, 0, ba.length);
     }
 
     /**
@@ -490,7 +612,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
 	// same code as writeShort
 	work[0] = (byte) v;
 	work[1] = (byte) (v >> 8);
-	raf.write(work, 0, 2);
+	write(work, 0, 2);
     }
 
     /**
@@ -553,7 +675,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
 	work[1] = (byte) (v >> 8);
 	work[2] = (byte) (v >> 16);
 	work[3] = (byte) (v >> 24);
-	raf.write(work, 0, 4);
+	write(work, 0, 4);
     }
 
     /**
@@ -576,7 +698,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
 	work[5] = (byte) (v >> 40);
 	work[6] = (byte) (v >> 48);
 	work[7] = (byte) (v >> 56);
-	raf.write(work, 0, 8);
+	write(work, 0, 8);
     }
 
     /**
@@ -593,7 +715,7 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
     public final void writeShort(final int v) throws IOException {
 	work[0] = (byte) v;
 	work[1] = (byte) (v >> 8);
-	raf.write(work, 0, 2);
+	write(work, 0, 2);
     }
 
     /**
@@ -608,6 +730,495 @@ public final class LERandomAccessFile implements DataInput, DataOutput {
      */
     @Override
     public final void writeUTF(final String s) throws IOException {
-	raf.writeUTF(s);
+	final ByteArrayOutputStream utf = new ByteArrayOutputStream(s.length() + 2);
+	new DataOutputStream(utf).writeUTF(s);
+	write(utf.toByteArray());
+    }
+
+    /**
+     * Read shorts, 16-bits each, until the count is satisfied. Like len calls of readShort, but decoded a block at a
+     * time.
+     *
+     * @param sa
+     *            where the shorts go.
+     * @param off
+     *            offset in sa.
+     * @param len
+     *            count of shorts to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readShorts(final short sa[], final int off, final int len) throws IOException {
+	checkRange(sa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 2);
+	    fill(2 * n).asShortBuffer().get(sa, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read ints, 32-bits each, until the count is satisfied. Like len calls of readInt, but decoded a block at a time.
+     *
+     * @param ia
+     *            where the ints go.
+     * @param off
+     *            offset in ia.
+     * @param len
+     *            count of ints to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readInts(final int ia[], final int off, final int len) throws IOException {
+	checkRange(ia.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 4);
+	    fill(4 * n).asIntBuffer().get(ia, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read longs, 64-bits each, until the count is satisfied. Like len calls of readLong, but decoded a block at a
+     * time.
+     *
+     * @param la
+     *            where the longs go.
+     * @param off
+     *            offset in la.
+     * @param len
+     *            count of longs to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readLongs(final long la[], final int off, final int len) throws IOException {
+	checkRange(la.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 8);
+	    fill(8 * n).asLongBuffer().get(la, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read floats until the count is satisfied. Like len calls of readFloat, but decoded a block at a time.
+     *
+     * @param fa
+     *            where the floats go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of floats to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readFloats(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 4);
+	    fill(4 * n).asFloatBuffer().get(fa, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read doubles until the count is satisfied. Like len calls of readDouble, but decoded a block at a time.
+     *
+     * @param da
+     *            where the doubles go.
+     * @param off
+     *            offset in da.
+     * @param len
+     *            count of doubles to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readDoubles(final double da[], final int off, final int len) throws IOException {
+	checkRange(da.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 8);
+	    fill(8 * n).asDoubleBuffer().get(da, off + done, n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Read signed shorts, 16-bits each, into floats until the count is satisfied.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of shorts to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readShortsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 2);
+	    final ShortBuffer sb = fill(2 * n).asShortBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = sb.get(i);
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read unsigned shorts, 16-bits each, into floats until the count is satisfied.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of shorts to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readUnsignedShortsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 2);
+	    final ShortBuffer sb = fill(2 * n).asShortBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = sb.get(i) & 0xffff;
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read signed ints, 32-bits each, into floats until the count is satisfied. Values beyond 2^24 are rounded to the
+     * nearest float.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of ints to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readIntsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 4);
+	    final IntBuffer ib = fill(4 * n).asIntBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = ib.get(i);
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read unsigned ints, 32-bits each, into floats until the count is satisfied. Values beyond 2^24 are rounded to
+     * the nearest float.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of ints to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readUnsignedIntsAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 4);
+	    final IntBuffer ib = fill(4 * n).asIntBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = ib.get(i) & 0xffffffffL;
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Read doubles into floats until the count is satisfied, rounding each to the nearest float.
+     *
+     * @param fa
+     *            where the values go.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of doubles to read.
+     *
+     * @throws IOException
+     *             if read fails.
+     */
+    public final void readDoublesAsFloat(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 8);
+	    final DoubleBuffer db = fill(8 * n).asDoubleBuffer();
+	    for (int i = 0; i < n; i++) {
+		fa[off + done + i] = (float) db.get(i);
+	    }
+	    done += n;
+	}
+    }
+
+    /**
+     * Write shorts, 16-bits each, little endian. Like len calls of writeShort, but encoded and written a block at a
+     * time.
+     *
+     * @param sa
+     *            shorts to write.
+     * @param off
+     *            offset in sa.
+     * @param len
+     *            count of shorts to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeShorts(final short sa[], final int off, final int len) throws IOException {
+	checkRange(sa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 2);
+	    startWrite().asShortBuffer().put(sa, off + done, n);
+	    finishWrite(2 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write ints, 32-bits each, little endian. Like len calls of writeInt, but encoded and written a block at a time.
+     *
+     * @param ia
+     *            ints to write.
+     * @param off
+     *            offset in ia.
+     * @param len
+     *            count of ints to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeInts(final int ia[], final int off, final int len) throws IOException {
+	checkRange(ia.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 4);
+	    startWrite().asIntBuffer().put(ia, off + done, n);
+	    finishWrite(4 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write longs, 64-bits each, little endian. Like len calls of writeLong, but encoded and written a block at a
+     * time.
+     *
+     * @param la
+     *            longs to write.
+     * @param off
+     *            offset in la.
+     * @param len
+     *            count of longs to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeLongs(final long la[], final int off, final int len) throws IOException {
+	checkRange(la.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 8);
+	    startWrite().asLongBuffer().put(la, off + done, n);
+	    finishWrite(8 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write floats, little endian. Like len calls of writeFloat, but encoded and written a block at a time.
+     *
+     * @param fa
+     *            floats to write.
+     * @param off
+     *            offset in fa.
+     * @param len
+     *            count of floats to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeFloats(final float fa[], final int off, final int len) throws IOException {
+	checkRange(fa.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 4);
+	    startWrite().asFloatBuffer().put(fa, off + done, n);
+	    finishWrite(4 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Write doubles, little endian. Like len calls of writeDouble, but encoded and written a block at a time.
+     *
+     * @param da
+     *            doubles to write.
+     * @param off
+     *            offset in da.
+     * @param len
+     *            count of doubles to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    public final void writeDoubles(final double da[], final int off, final int len) throws IOException {
+	checkRange(da.length, off, len);
+	for (int done = 0; done < len;) {
+	    final int n = Math.min(len - done, BUFFER_SIZE / 8);
+	    startWrite().asDoubleBuffer().put(da, off + done, n);
+	    finishWrite(8 * n);
+	    done += n;
+	}
+    }
+
+    /**
+     * Get the channel through which the file is read and written.
+     *
+     * @return the FileChannel of the file.
+     */
+    public final FileChannel getChannel() {
+	return channel;
+    }
+
+    /**
+     * Map a region of the file into memory. The bytes are read and written in place, without copying, and the mapping
+     * stays valid after the file is closed. It is writable unless the file was opened read-only; writes through it
+     * are not seen by the read buffer of this object, so seek after writing through a mapping.
+     *
+     * @param position
+     *            0-based offset in the file of the region.
+     * @param size
+     *            length in bytes of the region, at most Integer.MAX_VALUE.
+     *
+     * @return little-endian buffer over the region.
+     * @throws IOException
+     *             if mapping fails.
+     */
+    public final MappedByteBuffer map(final long position, final long size) throws IOException {
+	final MappedByteBuffer region = channel
+		.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, position, size);
+	region.order(ByteOrder.LITTLE_ENDIAN);
+	return region;
+    }
+
+    /**
+     * Make the buffer hold up to n bytes from the file pointer on, reading a whole buffer full if they are not there
+     * yet, and position it at the file pointer. The file pointer itself does not move.
+     *
+     * @param n
+     *            count of bytes wanted, at most BUFFER_SIZE.
+     *
+     * @return count of bytes available, less than n only at the end of the file.
+     * @throws IOException
+     *             if read fails.
+     */
+    private int load(final int n) throws IOException {
+	if (!isBuffered() || pos + n > bufferStart + buffer.limit()) {
+	    buffer.clear();
+	    bufferStart = pos;
+	    while (buffer.position() < n) {
+		if (channel.read(buffer, bufferStart + buffer.position()) < 0) {
+		    break;
+		}
+	    }
+	    buffer.flip();
+	}
+	buffer.position((int) (pos - bufferStart));
+	return Math.min(n, buffer.remaining());
+    }
+
+    /**
+     * true if the byte at the file pointer is in the buffer.
+     */
+    private boolean isBuffered() {
+	return pos >= bufferStart && pos < bufferStart + buffer.limit();
+    }
+
+    /**
+     * Read n bytes into the buffer and move the file pointer past them.
+     *
+     * @param n
+     *            count of bytes to read, at most BUFFER_SIZE.
+     *
+     * @return the buffer, positioned at the first of the bytes.
+     * @throws IOException
+     *             if read fails or the file ends first.
+     */
+    private ByteBuffer fill(final int n) throws IOException {
+	if (load(n) < n) {
+	    throw new EOFException();
+	}
+	pos += n;
+	return buffer;
+    }
+
+    /**
+     * Write the remaining bytes of src at the file pointer and move the file pointer past them. The read buffer is
+     * dropped afterwards, since it may hold the old bytes.
+     *
+     * @param src
+     *            bytes to write.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    private void write(final ByteBuffer src) throws IOException {
+	while (src.hasRemaining()) {
+	    pos += channel.write(src, pos);
+	}
+	buffer.limit(0);
+    }
+
+    /**
+     * Clear the buffer for encoding a block that is to be written.
+     *
+     * @return the empty buffer.
+     */
+    private ByteBuffer startWrite() {
+	buffer.clear();
+	return buffer;
+    }
+
+    /**
+     * Write the first n bytes of the buffer.
+     *
+     * @param n
+     *            count of bytes encoded into the buffer.
+     *
+     * @throws IOException
+     *             if write fails.
+     */
+    private void finishWrite(final int n) throws IOException {
+	buffer.limit(n);
+	write(buffer);
+    }
+
+    /**
+     * Check that off and len describe a part of an array of the given length.
+     */
+    private static void checkRange(final int length, final int off, final int len) {
+	if (off < 0 || len < 0 || len > length - off) {
+	    throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + length);
+	}
     }
 }
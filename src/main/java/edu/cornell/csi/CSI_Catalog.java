@@ -0,0 +1,626 @@
+package edu.cornell.csi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI Spectrum Analyzer.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * A catalog of the DM3, DM4 and SER files in a directory tree: the size, calibration, data offset and acquisition
+ * tags of each data set. The catalog is kept in an index file at the top of the tree. Only files that are new or
+ * whose size or modification time changed are read again, several at a time, and only their headers are read. A DM
+ * file opened from the catalog is read straight from the stored offset and calibration, without parsing its tags.
+ */
+public class CSI_Catalog implements PlugIn {
+    // Index file written at the top of the catalogued directory
+    static final String INDEX_NAME = ".csicatalog";
+    private static final String INDEX_HEADER = "# CSI catalog 1";
+    // Prefs keys of the dialog fields
+    private static final String PREF_DIRECTORY = "csi.catalog.directory";
+    private static final String PREF_SEARCH = "csi.catalog.search";
+    // SER data type of a series of spectra
+    private static final int SER_SPECTRA = 0x4120;
+
+    /*
+     * One catalogued data set. width x height are the pixels of an image or of the scan of a spectrum image and depth
+     * is the number of slices or energy channels. type is an ImageJ FileInfo type for DM files and the SER DataType
+     * for SER files, and offset is where the data starts, for SER files the first data element.
+     */
+    public static final class Entry {
+	public static final String DM = "DM";
+	public static final String SER = "SER";
+
+	public final String path; // relative to the catalogued directory, with / between names
+	public long size, modified;
+	public String kind = DM;
+	public int width, height, depth;
+	public int type;
+	public long offset;
+	public boolean intelByteOrder = true;
+	public double pixelWidth = 1, pixelHeight = 1, pixelDepth = 1, zOrigin;
+	public String unit = "", zUnit = "", valueUnit = "";
+	public String tags = ""; // "name = value" lines
+
+	Entry(final String path) {
+	    this.path = path;
+	}
+
+	/*
+	 * Returns the energy of the first channel.
+	 */
+	public double energyOrigin() {
+	    return -zOrigin * pixelDepth;
+	}
+
+	/*
+	 * Returns true if all words of query, ignoring case, are found in the path, kind or tags of this entry.
+	 */
+	public boolean matches(final String query) {
+	    final String text = (path + "\n" + kind + "\n" + tags).toLowerCase(Locale.ROOT);
+	    for (final String word : query.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+		if (!text.contains(word)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	FileInfo toFileInfo(final File dir) {
+	    final File file = new File(dir, path).getAbsoluteFile();
+	    final FileInfo fi = new FileInfo();
+	    fi.fileFormat = FileInfo.RAW;
+	    fi.fileName = file.getName();
+	    fi.directory = file.getParent() + File.separator;
+	    fi.width = width;
+	    fi.height = height;
+	    fi.nImages = depth;
+	    fi.fileType = type;
+	    fi.longOffset = offset;
+	    fi.intelByteOrder = intelByteOrder;
+	    return fi;
+	}
+
+	void calibrate(final Calibration cal) {
+	    cal.pixelWidth = pixelWidth;
+	    cal.pixelHeight = pixelHeight;
+	    cal.pixelDepth = pixelDepth;
+	    cal.zOrigin = zOrigin;
+	    cal.setUnit(unit);
+	    cal.setZUnit(zUnit);
+	    cal.setValueUnit(valueUnit);
+	}
+
+	String toLine() {
+	    final Object[] fields = { path, size, modified, kind, width, height, depth, type, offset,
+		    intelByteOrder ? 1 : 0, pixelWidth, pixelHeight, pixelDepth, zOrigin, unit, zUnit, valueUnit, tags };
+	    final StringBuilder sb = new StringBuilder();
+	    for (int i = 0; i < fields.length; i++) {
+		if (i > 0) {
+		    sb.append('\t');
+		}
+		sb.append(escape(String.valueOf(fields[i])));
+	    }
+	    return sb.toString();
+	}
+
+	static Entry parse(final String line) {
+	    final String[] f = line.split("\t", -1);
+	    if (f.length != 18) {
+		throw new IllegalArgumentException("Not a catalog entry: " + line);
+	    }
+	    final Entry e = new Entry(unescape(f[0]));
+	    e.size = Long.parseLong(f[1]);
+	    e.modified = Long.parseLong(f[2]);
+	    e.kind = f[3].equals(SER) ? SER : DM;
+	    e.width = Integer.parseInt(f[4]);
+	    e.height = Integer.parseInt(f[5]);
+	    e.depth = Integer.parseInt(f[6]);
+	    e.type = Integer.parseInt(f[7]);
+	    e.offset = Long.parseLong(f[8]);
+	    e.intelByteOrder = f[9].equals("1");
+	    e.pixelWidth = Double.parseDouble(f[10]);
+	    e.pixelHeight = Double.parseDouble(f[11]);
+	    e.pixelDepth = Double.parseDouble(f[12]);
+	    e.zOrigin = Double.parseDouble(f[13]);
+	    e.unit = unescape(f[14]);
+	    e.zUnit = unescape(f[15]);
+	    e.valueUnit = unescape(f[16]);
+	    e.tags = unescape(f[17]);
+	    return e;
+	}
+    }
+
+    @Override
+    public void run(final String arg) {
+	final GenericDialog gd = new GenericDialog("CSI Catalog");
+	gd.addStringField("Directory", Prefs.get(PREF_DIRECTORY, ""), 32);
+	gd.addMessage("Leave the directory empty to choose it in a file dialog.");
+	gd.addStringField("Search", Prefs.get(PREF_SEARCH, ""), 24);
+	gd.addCheckbox("Open the matching data sets", false);
+	gd.showDialog();
+	if (gd.wasCanceled()) {
+	    return;
+	}
+	String path = gd.getNextString().trim();
+	final String search = gd.getNextString();
+	final boolean open = gd.getNextBoolean();
+	if (path.isEmpty()) {
+	    path = new DirectoryChooser("CSI Catalog Directory").getDirectory();
+	    if (path == null) {
+		return;
+	    }
+	}
+	final File dir = new File(path);
+	if (!dir.isDirectory()) {
+	    IJ.error("CSI Catalog", "Not a directory: " + dir);
+	    return;
+	}
+	Prefs.set(PREF_DIRECTORY, dir.getPath());
+	Prefs.set(PREF_SEARCH, search);
+
+	final List<Entry> entries;
+	try {
+	    entries = update(dir);
+	} catch (final IOException e) {
+	    IJ.error("CSI Catalog", "Could not update the catalog: " + e.getMessage());
+	    return;
+	}
+	final List<Entry> matches = find(entries, search);
+	show(matches);
+	if (open) {
+	    for (final Entry e : matches) {
+		final ImagePlus imp = open(dir, e);
+		if (imp != null) {
+		    imp.show();
+		}
+	    }
+	}
+    }
+
+    /*
+     * Brings the catalog of dir up to date and returns its entries, sorted by path. The files that are not in the
+     * index file, or whose size or modification time differ from the index, are read on as many threads as ImageJ may
+     * use; the entries of all other files are taken from the index as they are. Files that can not be read are left
+     * out of the catalog and reported in the log. The index file is only written if the catalog changed.
+     */
+    public static List<Entry> update(final File dir) throws IOException {
+	final File index = new File(dir, INDEX_NAME);
+	final Map<String, Entry> known = readIndex(index);
+	final List<File> files = new ArrayList<File>();
+	collect(dir, files);
+
+	final List<Entry> entries = new ArrayList<Entry>(files.size());
+	final List<Callable<Entry>> tasks = new ArrayList<Callable<Entry>>();
+	for (final File file : files) {
+	    final String path = relativePath(dir, file);
+	    final Entry entry = known.get(path);
+	    if (entry != null && entry.size == file.length() && entry.modified == file.lastModified()) {
+		entries.add(entry);
+		continue;
+	    }
+	    tasks.add(new Callable<Entry>() {
+		@Override
+		public Entry call() {
+		    try {
+			return probe(file, path);
+		    } catch (final Exception e) {
+			IJ.log("CSI Catalog: skipped " + path + ": " + e);
+			return null;
+		    }
+		}
+	    });
+	}
+	final List<Entry> probed = probeAll(tasks);
+	entries.addAll(probed);
+	Collections.sort(entries, new Comparator<Entry>() {
+	    @Override
+	    public int compare(final Entry a, final Entry b) {
+		return a.path.compareTo(b.path);
+	    }
+	});
+	if (!probed.isEmpty() || entries.size() != known.size()) {
+	    writeIndex(index, entries);
+	}
+	return entries;
+    }
+
+    /*
+     * Runs the tasks and returns the entries they found, at most Prefs.getThreads() of them at a time.
+     */
+    private static List<Entry> probeAll(final List<Callable<Entry>> tasks) throws IOException {
+	final List<Entry> entries = new ArrayList<Entry>(tasks.size());
+	final int threads = Prefs.getThreads();
+	if (threads < 2 || tasks.size() < 2) {
+	    for (int n = 0; n < tasks.size(); n++) {
+		IJ.showProgress(n, tasks.size());
+		try {
+		    addEntry(entries, tasks.get(n).call());
+		} catch (final Exception e) {
+		    throw new IOException(e);
+		}
+	    }
+	    IJ.showProgress(1.0);
+	    return entries;
+	}
+	final ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    for (final Future<Entry> result : pool.invokeAll(tasks)) {
+		addEntry(entries, result.get());
+	    }
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while reading the files", e);
+	} catch (final ExecutionException e) {
+	    throw new IOException(e.getCause());
+	} finally {
+	    pool.shutdown();
+	}
+	return entries;
+    }
+
+    private static void addEntry(final List<Entry> entries, final Entry entry) {
+	if (entry != null) {
+	    entries.add(entry);
+	}
+    }
+
+    /*
+     * Returns the entries that match query, or all of them if query is empty.
+     */
+    public static List<Entry> find(final List<Entry> entries, final String query) {
+	if (query == null || query.trim().isEmpty()) {
+	    return entries;
+	}
+	final List<Entry> matches = new ArrayList<Entry>();
+	for (final Entry e : entries) {
+	    if (e.matches(query)) {
+		matches.add(e);
+	    }
+	}
+	return matches;
+    }
+
+    /*
+     * Opens the data set of entry in the catalog of dir. A DM file that has not changed since it was catalogued is
+     * read from the stored offset, size and calibration; other files are loaded by their reader. Returns null if the
+     * file could not be read.
+     */
+    public static ImagePlus open(final File dir, final Entry entry) {
+	final File file = new File(dir, entry.path).getAbsoluteFile();
+	if (entry.kind.equals(Entry.SER)) {
+	    return new CSI_TIA_Reader().load(file.getPath().replace('\\', '/'), null);
+	}
+	if (file.length() != entry.size || file.lastModified() != entry.modified) {
+	    return new CSI_DM3_Reader().load(file.getParent(), file.getName());
+	}
+	final FileInfo fi = entry.toFileInfo(dir);
+	final ImagePlus imp;
+	if (entry.depth > 1 && CSI_DM3_Reader.isIntegerSpectrumImage(entry.type)) {
+	    try {
+		imp = new ImagePlus(file.getName(), new CSI_DM3_Reader().readPlanes(fi));
+	    } catch (final IOException e) {
+		IJ.error("CSI Catalog", "Could not read " + entry.path + ": " + e.getMessage());
+		return null;
+	    }
+	} else {
+	    imp = new FileOpener(fi).open(false);
+	    if (imp == null) {
+		return null;
+	    }
+	}
+	final Calibration cal = imp.getCalibration();
+	entry.calibrate(cal);
+	final ImageStack ims = imp.getStack();
+	for (int i = 0; i < ims.getSize(); i++) {
+	    ims.setSliceLabel(String.format("%.1f " + cal.getZUnit(), (i - cal.zOrigin) * cal.pixelDepth), i + 1);
+	}
+	return imp;
+    }
+
+    /*
+     * Lists the entries in the "CSI Catalog" results table.
+     */
+    static void show(final List<Entry> entries) {
+	final ResultsTable rt = new ResultsTable();
+	for (final Entry e : entries) {
+	    rt.incrementCounter();
+	    rt.addValue("File", e.path);
+	    rt.addValue("Kind", e.kind);
+	    rt.addValue("Width", e.width);
+	    rt.addValue("Height", e.height);
+	    rt.addValue("Depth", e.depth);
+	    rt.addValue("Pixel size", e.pixelWidth);
+	    rt.addValue("Unit", e.unit);
+	    rt.addValue("Dispersion", e.pixelDepth);
+	    rt.addValue("Energy origin", e.energyOrigin());
+	    rt.addValue("Energy unit", e.zUnit);
+	    rt.addValue("Offset", e.offset);
+	}
+	rt.show("CSI Catalog");
+    }
+
+    /*
+     * Reads the header of one file into a new entry.
+     */
+    static Entry probe(final File file, final String path) throws IOException {
+	final Entry e = new Entry(path);
+	// taken before reading, so that a file that is written meanwhile is read again next time
+	e.size = file.length();
+	e.modified = file.lastModified();
+	if (file.getName().toLowerCase(Locale.ROOT).endsWith(".ser")) {
+	    probeSer(file, e);
+	} else {
+	    probeDM(file, e);
+	}
+	return e;
+    }
+
+    private static void probeDM(final File file, final Entry e) throws IOException {
+	final CSI_DM3_Reader reader = new CSI_DM3_Reader();
+	final FileInfo fi = reader.probe(file.getAbsoluteFile().getParent(), file.getName());
+	e.kind = Entry.DM;
+	e.width = fi.width;
+	e.height = fi.height;
+	e.depth = fi.nImages;
+	e.type = fi.fileType;
+	e.offset = fi.getOffset();
+	e.intelByteOrder = fi.intelByteOrder;
+	Calibration cal;
+	try {
+	    cal = reader.getDM3CalibrationInfo(new Calibration());
+	} catch (final Exception x) {
+	    cal = new Calibration(); // no calibration tags
+	}
+	e.pixelWidth = cal.pixelWidth;
+	e.pixelHeight = cal.pixelHeight;
+	e.pixelDepth = cal.pixelDepth;
+	e.zOrigin = cal.zOrigin;
+	e.unit = cal.getUnit();
+	e.zUnit = cal.getZUnit();
+	e.valueUnit = cal.getValueUnit();
+	// the ImageTags of the image whose data was chosen, which is found by its offset
+	final String[] lines = fi.info.split("\n");
+	String image = null;
+	for (final String line : lines) {
+	    if (line.endsWith(".ImageData.Data.Offset = " + e.offset)) {
+		image = line.substring(0, line.indexOf(".ImageData.")) + ".ImageTags.";
+	    }
+	}
+	final StringBuilder sb = new StringBuilder();
+	for (final String line : lines) {
+	    if (image != null && line.startsWith(image)) {
+		sb.append(line.substring(image.length())).append('\n');
+	    }
+	}
+	e.tags = sb.toString();
+    }
+
+    private static void probeSer(final File file, final Entry e) throws IOException {
+	final CSI_TIA_Reader.SerFile ser = new CSI_TIA_Reader.SerFile(file.getPath());
+	try {
+	    final CSI_TIA_Reader.SerHeader header = new CSI_TIA_Reader.SerHeader(ser);
+	    if (header.byteOrder != 0x4949) {
+		throw new IOException("Doesn't seem to be a SER file");
+	    }
+	    if (header.validNumberElements < 1) {
+		throw new IOException("The SER file holds no data elements");
+	    }
+	    e.kind = Entry.SER;
+	    final StringBuilder tags = new StringBuilder();
+	    tags.append("SeriesVersion = 0x").append(Integer.toHexString(header.seriesVersion)).append('\n');
+	    tags.append("ValidNumberElements = ").append(header.validNumberElements).append('\n');
+	    // the dimension array fills the gap to the offset array
+	    final ByteBuffer data = ser.read(header.size(), (int) (header.offsetArrayOffset - header.size()));
+	    final int[] dimensionSize = new int[header.numberDimensions];
+	    final double[] delta = new double[header.numberDimensions];
+	    final String[] units = new String[header.numberDimensions];
+	    for (int d = 0; d < header.numberDimensions; d++) {
+		dimensionSize[d] = data.getInt(); // DimensionSize
+		data.getDouble(); // CalibrationOffset
+		delta[d] = data.getDouble(); // CalibrationDelta
+		data.getInt(); // CalibrationElement
+		tags.append("Dimension.").append(d).append(".Description = ").append(readText(data)).append('\n');
+		units[d] = readText(data);
+	    }
+	    final long[] first = new long[1];
+	    header.readOffsets(ser, first, 0);
+	    e.offset = first[0];
+	    if (header.dataTypeId == SER_SPECTRA) {
+		final ByteBuffer spectrum = ser.read(e.offset, CSI_TIA_Reader.SPECTRUM_HEADER);
+		final double zOffset = spectrum.getDouble(); // CalibrationOffset
+		final double zDelta = spectrum.getDouble(); // CalibrationDelta
+		final int zElement = spectrum.getInt(); // CalibrationElement
+		e.type = spectrum.getShort(); // DataType
+		e.depth = spectrum.getInt(); // ArrayLength
+		e.pixelDepth = zDelta;
+		e.zOrigin = zElement - zOffset / zDelta;
+		e.zUnit = "eV";
+		if (header.numberDimensions == 2) {
+		    e.width = dimensionSize[0];
+		    e.height = dimensionSize[1];
+		    e.pixelWidth = delta[0];
+		    e.pixelHeight = delta[1];
+		    e.unit = units[0];
+		} else {
+		    e.width = header.validNumberElements; // a line scan
+		    e.height = 1;
+		}
+	    } else {
+		final ByteBuffer image = ser.read(e.offset, CSI_TIA_Reader.IMAGE_HEADER);
+		image.getDouble(); // CalibrationOffsetX
+		e.pixelWidth = image.getDouble(); // CalibrationDeltaX
+		image.getInt(); // CalibrationElementX
+		image.getDouble(); // CalibrationOffsetY
+		e.pixelHeight = image.getDouble(); // CalibrationDeltaY
+		image.getInt(); // CalibrationElementY
+		e.type = image.getShort(); // DataType
+		e.width = image.getInt(); // ArraySizeX
+		e.height = image.getInt(); // ArraySizeY
+		e.depth = header.validNumberElements;
+		e.unit = "m";
+	    }
+	    e.tags = tags.toString();
+	} finally {
+	    ser.close();
+	}
+    }
+
+    // a text of the dimension array: its length, then one byte per character
+    private static String readText(final ByteBuffer data) {
+	final char[] text = new char[data.getInt()];
+	for (int i = 0; i < text.length; i++) {
+	    text[i] = (char) data.get();
+	}
+	return new String(text);
+    }
+
+    /*
+     * Adds the DM3, DM4 and SER files in dir and its subdirectories to files, in the order of their names.
+     */
+    private static void collect(final File dir, final List<File> files) {
+	final File[] list = dir.listFiles();
+	if (list == null) {
+	    return;
+	}
+	Arrays.sort(list);
+	for (final File file : list) {
+	    final String name = file.getName().toLowerCase(Locale.ROOT);
+	    if (name.startsWith(".")) {
+		continue;
+	    }
+	    if (file.isDirectory()) {
+		collect(file, files);
+	    } else if (name.endsWith(".dm3") || name.endsWith(".dm4") || name.endsWith(".ser")) {
+		files.add(file);
+	    }
+	}
+    }
+
+    private static String relativePath(final File dir, final File file) {
+	return dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /*
+     * Returns the entries of the index file by path, or none if there is no index file or it is of another version.
+     */
+    private static Map<String, Entry> readIndex(final File index) throws IOException {
+	final Map<String, Entry> entries = new HashMap<String, Entry>();
+	if (!index.isFile()) {
+	    return entries;
+	}
+	final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+	try {
+	    if (!INDEX_HEADER.equals(in.readLine())) {
+		return entries;
+	    }
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		try {
+		    final Entry e = Entry.parse(line);
+		    entries.put(e.path, e);
+		} catch (final IllegalArgumentException e) {
+		    // a damaged line, its file is read again
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+	return entries;
+    }
+
+    /*
+     * Writes the index file. It is written next to the old one first and then moved over it, so that a catalog that
+     * is being read never sees a half-written index.
+     */
+    private static void writeIndex(final File index, final List<Entry> entries) throws IOException {
+	final File temp = new File(index.getPath() + ".tmp");
+	final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+	try {
+	    out.write(INDEX_HEADER);
+	    out.newLine();
+	    for (final Entry e : entries) {
+		out.write(e.toLine());
+		out.newLine();
+	    }
+	} finally {
+	    out.close();
+	}
+	Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // tabs and line breaks would break up the lines of the index file
+    private static String escape(final String s) {
+	return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(final String s) {
+	final StringBuilder sb = new StringBuilder(s.length());
+	for (int i = 0; i < s.length(); i++) {
+	    final char c = s.charAt(i);
+	    if (c != '\\' || i + 1 == s.length()) {
+		sb.append(c);
+		continue;
+	    }
+	    final char next = s.charAt(++i);
+	    sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+	}
+	return sb.toString();
+    }
+}
@@ -1,17 +1,26 @@
 package edu.cornell.csi;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector; // for the Vector and Hashtable classes
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector; // for the Vector class
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 //import ij.IJ.*;
 
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
@@ -185,15 +194,37 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
     public boolean useGatanMinMax = true;
 
     private boolean littleEndian = true; // default for .dm3 files
+    // DM4 files are laid out like DM3 files, but the counts and sizes that
+    // describe the tags are 8 byte longs instead of 4 byte ints
+    private boolean dm4 = false;
     // nb all tags are written big-endian, it is only the actual data
     // attached to each tag that may be little-endian (and will be for PC files)
     // private String directory;
     // private String fileName;
-    private RandomAccessFile f; // This stream will be used for reading by parseDM3()
+    // parseDM3() reads the tag tree through a window onto the file, so that
+    // the many small reads of the tags do not each become a system call
+    private FileChannel tagChannel;
+    private ByteBuffer f; // the window, which is big-endian like the tags
+    private long fStart; // file position of the first byte in f
+    private static final int TAG_WINDOW = 1 << 16;
 
     private FileInfo fi;
 
-    private String notes = ""; // I will store interesting file info in here
+    // Ask which part of a spectrum image to load - only when run as a plugin,
+    // so that load() can still be called without any dialog
+    private boolean showOptions = false;
+    // Open spectrum images as a memory-mapped virtual stack - chosen in
+    // the import dialog and remembered in the Prefs
+    private boolean virtual = false;
+    // In probe mode only the tags that describe the images are stored -
+    // see probe() - and reading stops after the ImageList
+    private boolean probing = false;
+    private boolean keepTags = true; // store the tags of the current group
+    private boolean probeDone = false;
+    private static final String PREF_VIRTUAL = "csi.dm3.virtual";
+    // Planes of a spectrum image are mapped and converted in runs of
+    // about this many bytes
+    private static final int PLANE_CHUNK = 1 << 22;
 
     // 0=none, 1-3=basic, 4-5=simple, 6-10 verbose
     private static final int debugLevel = IJ.debugMode ? 10 : 0;
@@ -207,25 +238,27 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
     private int curGroupLevel = -1; // Track how deep is the group we are currently reading
     private static final int MAXDEPTH = 64; // Maximum number of levels of tags
     private final int[] curGroupAtLevelX = new int[MAXDEPTH]; // To track group at current level
-    private final String[] curGroupNameAtLevelX = new String[MAXDEPTH]; // To track group name at current level
+    private DM3Tags.Group curGroup; // the group we are currently reading
 
     private final int[] curTagAtLevelX = new int[MAXDEPTH]; // To track tag number at current level
-    private String curTagName = ""; // the name of the current tag data item
+    private String curTagLabel = ""; // the label of the current tag data item
 
-    // Will use these to store tags
-    private final Vector<String> storedTags = new Vector<String>();
-    private final Hashtable<String, Object> tagHash = new Hashtable<String, Object>();
+    // Will use this to store tags; a new one for every file, as it is
+    // handed on to the image that is loaded
+    private DM3Tags tags = new DM3Tags();
 
     // Set up constants for the different encoded data types used in DM3 files
-    private static final int SHORT = 2;
-    private static final int LONG = 3;
-    private static final int USHORT = 4;
-    private static final int ULONG = 5;
-    private static final int FLOAT = 6;
-    private static final int DOUBLE = 7;
-    private static final int BOOLEAN = 8;
-    private static final int CHAR = 9;
-    private static final int OCTET = 10;
+    static final int SHORT = 2;
+    static final int LONG = 3;
+    static final int USHORT = 4;
+    static final int ULONG = 5;
+    static final int FLOAT = 6;
+    static final int DOUBLE = 7;
+    static final int BOOLEAN = 8;
+    static final int CHAR = 9;
+    static final int OCTET = 10;
+    static final int LLONG = 11; // DM4 only
+    static final int ULLONG = 12; // DM4 only
     private static final int STRUCT = 15;
     private static final int STRING = 18;
     private static final int ARRAY = 20;
@@ -242,7 +275,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	if (debugLevel > 5)
 	    IJ.log("IN:dir = " + directory + ", file=" + fileName);
 	if ((arg == null) || (arg.equals(""))) { // Choose a file since none specified
-	    final OpenDialog od = new OpenDialog("Load DM3 File...", arg);
+	    final OpenDialog od = new OpenDialog("Load DM3/DM4 File...", arg);
 	    fileName = od.getFileName();
 	    if (fileName == null)
 		return;
@@ -258,6 +291,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	}
 
 	// Load in the image
+	showOptions = true;
 	final ImagePlus imp = load(directory, fileName);
 	if (imp == null)
 	    return;
@@ -289,6 +323,71 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
     }
 
     public ImagePlus load(final String dir, final String fileName) /* throws IOException */ {
+	return load(dir, fileName, null);
+    }
+
+    // Opens a spectrum image as a memory-mapped virtual stack, so that it
+    // may be larger than the memory. Other images are loaded as usual.
+    public ImagePlus loadVirtual(final String dir, final String fileName) {
+	virtual = true;
+	try {
+	    return load(dir, fileName, null);
+	} finally {
+	    virtual = false;
+	}
+    }
+
+    // Reads just enough of a file to describe its images: the tags in
+    // root.ImageList.<n>.ImageData, which getDM3FileInfo and
+    // getDM3CalibrationInfo use, and those in ImageTags.Microscope Info.
+    // Other tags are passed over without being stored, reading stops after
+    // the ImageList and no pixel data is read. The returned FileInfo
+    // describes the largest image, with its calibration filled in and the
+    // kept tags listed in its info field.
+    public FileInfo probe(final String dir, final String fileName) throws IOException {
+	String directory = dir;
+	if (!directory.endsWith(File.separator))
+	    directory += File.separator;
+	tags = new DM3Tags();
+	probing = true;
+	try {
+	    parseDM3(directory, fileName);
+	} finally {
+	    probing = false;
+	}
+	final FileInfo fi1 = getDM3FileInfo(directory, fileName);
+	try {
+	    final Calibration cal = getDM3CalibrationInfo(new Calibration());
+	    fi1.pixelWidth = cal.pixelWidth;
+	    fi1.pixelHeight = cal.pixelHeight;
+	    fi1.pixelDepth = cal.pixelDepth;
+	    fi1.unit = cal.getUnit();
+	    fi1.valueUnit = cal.getValueUnit();
+	} catch (final Exception e) {
+	    // no calibration tags, so the image is left uncalibrated
+	}
+	fi1.info = tags.toString();
+	return fi1;
+    }
+
+    // Returns true if the tags of the group with the given path are kept
+    // by probe()
+    private static boolean isProbed(final String path) {
+	if (!path.startsWith(IMGLIST))
+	    return false;
+	final int dot = path.indexOf('.', IMGLIST.length());
+	if (dot < 0)
+	    return false;
+	final String part = path.substring(dot + 1); // the path within the image
+	return part.equals("ImageData") || part.startsWith("ImageData.")
+		|| part.equals("ImageTags.Microscope Info") || part.startsWith("ImageTags.Microscope Info.");
+    }
+
+    // Loads only region of the image - a rectangle of pixels and a range of
+    // slices (energy channels of a spectrum image). Only the bytes of the
+    // region are read, using ImageData.Data.Offset and the dimension tags.
+    // A null region loads everything.
+    public ImagePlus load(final String dir, final String fileName, Hyperslab region) {
 	String directory = dir;
 	if ((fileName == null) || (fileName == ""))
 	    return null;
@@ -298,9 +397,8 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
 	IJ.showStatus("Loading DM3 File: " + directory + fileName);
 
-	// Clear the lists of tags in which additional info will be stored
-	tagHash.clear();
-	storedTags.clear();
+	// Start a new list of tags in which additional info will be stored
+	tags = new DM3Tags();
 	// Try calling the parse routine
 	try {
 	    parseDM3(directory, fileName);
@@ -330,22 +428,58 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	if (debugLevel > 1)
 	    IJ.log("Chosen image = " + chosenImage);
 
+	// Spectrum images may be loaded in part
+	if (region == null && showOptions && fi.nImages > 1) {
+	    region = askRegion(fi);
+	    if (region == null)
+		return null; // dialog was canceled or the region is empty
+	}
+	if (region != null) {
+	    region = region.clip(fi.width, fi.height, fi.nImages);
+	    if (region == null) {
+		IJ.showMessage("DM3_Reader", "The selected region lies outside of the image.");
+		return null;
+	    }
+	}
+
 	// Open the image!
-	final FileOpener fo = new FileOpener(fi);
-	final ImagePlus imp = fo.open(false);
+	ImagePlus imp;
+	if (virtual && fi.nImages > 1 && MappedVirtualStack.supports(fi.fileType)) {
+	    try {
+		imp = new ImagePlus(fileName, new MappedVirtualStack(new File(directory + fileName), fi.getOffset(),
+			fi.width, fi.height, energyLabels(fi.nImages), fi.fileType, fi.intelByteOrder));
+	    } catch (final Exception e) {
+		IJ.showStatus("");
+		IJ.showMessage("DM3_Reader", "MappedVirtualStack:" + e);
+		return null;
+	    }
+	    region = null; // always the whole image
+	} else if (region != null && !region.covers(fi.width, fi.height, fi.nImages)) {
+	    try {
+		imp = new ImagePlus(fileName, readRegion(fi, region));
+	    } catch (final Exception e) {
+		IJ.showStatus("");
+		IJ.showMessage("DM3_Reader", "readRegion:" + e);
+		return null;
+	    }
+	} else if (fi.nImages > 1 && isIntegerSpectrumImage(fi.fileType)) {
+	    try {
+		imp = new ImagePlus(fileName, readPlanes(fi));
+	    } catch (final Exception e) {
+		IJ.showStatus("");
+		IJ.showMessage("DM3_Reader", "readPlanes:" + e);
+		return null;
+	    }
+	} else {
+	    final FileOpener fo = new FileOpener(fi);
+	    imp = fo.open(false);
+	}
 	// if(debugLevel>5) if(imp==null) IJ.log("Image load failed!");
 
-	// Write out the contents of the storedTags list
-	// and set the value of notes
-	final StringBuffer notesBuffer = new StringBuffer();
-	for (int i = 0; i < storedTags.size(); i++) {
-	    // Can decide whether I want to do this
-	    // IJ.log((String) storedTags.elementAt(i));
-	    notesBuffer.append(storedTags.elementAt(i) + "\n");
-	}
-	notes = notesBuffer.toString();
-	if (!notes.equals(""))
-	    imp.setProperty("Info", notes);
+	// The list of tags becomes the Info property, but is only
+	// written out when it is asked for
+	if (imp != null && tags.size() > 0)
+	    imp = new TaggedImage(imp, tags);
 
 	// Set (spatial) calibration
 	// nb pass the current calibration in case that contains useful info
@@ -355,6 +489,8 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	} catch (final Exception e) {
 	    IJ.showStatus("No Calibration info in " + fileName);
 	}
+	if (region != null)
+	    region.calibrate(imp.getCalibration());
 	// Hovden - Sep 06 2010
 	// Set stack
 	try {
@@ -367,7 +503,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	}
 	// If this is a diffraction (ie reciprocal space) image then set the
 	// FHT property so that ImageJ displays inverse scale
-	final String imagingMode = (String) tagHash
+	final String imagingMode = (String) tags
 		.get(IMGLIST + chosenImage + ".ImageTags.Microscope Info.Imaging Mode");
 	if (imagingMode != null && imagingMode.toUpperCase().equals("DIFFRACTION")) {
 	    imp.setProperty("FHT", "Dummy FHT");
@@ -379,18 +515,19 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	if (useGatanMinMax) {
 	    // now searches through all tags
 	    // after bug report by <Charles.P.Daghlian@Dartmouth.EDU>
+	    // Take the limits of the chosen image, or else of the last
+	    // ImageDisplayInfo anywhere in the file
 	    double hiVal = 0.0, loVal = 0.0;
-	    // Iterate over components of the taglist
-	    // looking for the image brightness tag
-	    // all this because I don't know how to partially match a hash key
-	    for (final Enumeration<String> e = tagHash.keys(); e.hasMoreElements();) {
-		final String thisElementString = e.nextElement();
-
-		if ((thisElementString).endsWith("ImageDisplayInfo.HighLimit"))
-		    hiVal = ((Float) tagHash.get(thisElementString)).doubleValue();
-		if ((thisElementString).endsWith("ImageDisplayInfo.LowLimit"))
-		    loVal = ((Float) tagHash.get(thisElementString)).doubleValue();
+	    Object hiTag = tags.get(IMGLIST + chosenImage + ".ImageDisplayInfo.HighLimit");
+	    Object loTag = tags.get(IMGLIST + chosenImage + ".ImageDisplayInfo.LowLimit");
+	    if (hiTag == null && loTag == null) {
+		hiTag = tags.getLast("ImageDisplayInfo", "HighLimit");
+		loTag = tags.getLast("ImageDisplayInfo", "LowLimit");
 	    }
+	    if (hiTag instanceof Float)
+		hiVal = ((Float) hiTag).doubleValue();
+	    if (loTag instanceof Float)
+		loVal = ((Float) loTag).doubleValue();
 
 	    // If we found at least one, then set the min max brightness
 	    if (hiVal != 0.0 || loVal != 0.0) {
@@ -414,24 +551,40 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	// and therefore keeps track of position (use long getFilePointer())
 	// also has DataInput Interface allowing
 	// reading of specific types
-	f = new RandomAccessFile(directory + fileName, "r");
+	final RandomAccessFile raf = new RandomAccessFile(directory + fileName, "r");
+	tagChannel = raf.getChannel();
+	f = ByteBuffer.allocate(TAG_WINDOW);
+	f.limit(0);
+	fStart = 0;
+	try {
+	    readTags(directory, fileName);
+	} finally {
+	    // Close the input stream
+	    raf.close();
+	    tagChannel = null;
+	    f = null;
+	}
+    }
+
+    private void readTags(final String directory, final String fileName) throws IOException {
 	if (debugLevel > 0)
 	    IJ.log("Directory = " + directory);
 	if (debugLevel > 0)
 	    IJ.log("File = " + fileName);
 
-	// Get the first 3 4byte ints from Header to find out
-	// FileVersion (which must be 3)
-	final int fileVersion = f.readInt();
-	if (fileVersion != 3)
-	    throw new IOException("This does not seem to be a DM3 file");
+	// Get the first 3 numbers from Header to find out
+	// FileVersion (which must be 3 or 4)
+	final int fileVersion = need(4).getInt();
+	if (fileVersion != 3 && fileVersion != 4)
+	    throw new IOException("This does not seem to be a DM3 or DM4 file");
+	dm4 = fileVersion == 4;
 
 	if (debugLevel > 5)
 	    IJ.log("File Version" + fileVersion);
 
 	@SuppressWarnings("unused")
-	final int FileSize = f.readInt();
-	final int lE = f.readInt();
+	final long FileSize = readCount();
+	final int lE = need(4).getInt();
 
 	if (debugLevel > 5)
 	    IJ.log("lE " + lE);
@@ -444,18 +597,17 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    if (lE == 0)
 		littleEndian = false;
 	    else {
-		throw new IOException("This does not seem to be a DM3 file");
+		throw new IOException("This does not seem to be a DM3 or DM4 file");
 	    }
 	}
 
 	// The DM3 file has an unnamed root group which contains everything in the file
-	curGroupNameAtLevelX[0] = "root"; // Set the name of the root group
+	curGroup = tags.root();
+	keepTags = !probing;
+	probeDone = false;
 
 	// Now go read it (and all of its sub groups.
 	readTagGroup();
-
-	// Close the input stream
-	f.close();
     }
 
     FileInfo getDM3FileInfo(final String directory, final String fileName) throws IOException {
@@ -487,21 +639,21 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 		IJ.log("Looking for:" + IMGLIST + i + tString);
 
 	    // Can we find information for image i
-	    if (tagHash.containsKey(IMGLIST + i + rString)) {
+	    if (tags.containsKey(IMGLIST + i + rString)) {
 		if (debugLevel > 1)
 		    IJ.log("Found:" + IMGLIST + i + rString);
 		if (debugLevel > 1)
 		    IJ.log("Found:" + IMGLIST + i + tString);
 		// how big is this image?
-		final long dataSize = ((Long) tagHash.get(IMGLIST + i + rString)).longValue();
-		final int dataType = ((Integer) tagHash.get(IMGLIST + i + tString)).intValue();
+		final long dataSize = ((Long) tags.get(IMGLIST + i + rString)).longValue();
+		final int dataType = ((Number) tags.get(IMGLIST + i + tString)).intValue();
 		if (debugLevel > 1)
 		    IJ.log("Current Data Size " + dataSize);
 		if (debugLevel > 1)
 		    IJ.log("Current Data Type " + dataType);
 
 		// Is it the largest so far?
-		if (tagHash.containsKey(IMGLIST + i + tString)) {
+		if (tags.containsKey(IMGLIST + i + tString)) {
 		    if ((dataSize > largestDataSizeSoFar) && (dataType != 23)) {
 			// Choose this image
 			largestDataSizeSoFar = dataSize;
@@ -532,7 +684,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	 * };
 	 */
 	// OK pick the DataType
-	final int dataType = ((Integer) tagHash.get(IMGLIST + chosenImage + ".ImageData.DataType")).intValue();
+	final int dataType = ((Number) tags.get(IMGLIST + chosenImage + ".ImageData.DataType")).intValue();
 
 	// I have made my best guess for types 1-14
 	// ie SIGNED_INT16_DATA to BINARY_DATA
@@ -585,13 +737,13 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
 	// Get the dimensions of the image for the chosen image
 	// I'm assuming they are ordered width then height
-	fi1.width = ((Integer) tagHash.get(IMGLIST + chosenImage + ".ImageData.Dimensions.0")).intValue();
-	if (tagHash.get(IMGLIST + chosenImage + ".ImageData.Dimensions.1") != null) // Cueva - Nov 11, 2010
-	    fi1.height = ((Integer) tagHash.get(IMGLIST + chosenImage + ".ImageData.Dimensions.1")).intValue();
+	fi1.width = ((Number) tags.get(IMGLIST + chosenImage + ".ImageData.Dimensions.0")).intValue();
+	if (tags.get(IMGLIST + chosenImage + ".ImageData.Dimensions.1") != null) // Cueva - Nov 11, 2010
+	    fi1.height = ((Number) tags.get(IMGLIST + chosenImage + ".ImageData.Dimensions.1")).intValue();
 	else
 	    fi1.height = 1;
-	if (tagHash.get(IMGLIST + chosenImage + ".ImageData.Dimensions.2") != null) { // Cueva - Sept 9, 2010
-	    fi1.nImages = ((Integer) tagHash.get(IMGLIST + chosenImage + ".ImageData.Dimensions.2")).intValue(); // Hovden
+	if (tags.get(IMGLIST + chosenImage + ".ImageData.Dimensions.2") != null) { // Cueva - Sept 9, 2010
+	    fi1.nImages = ((Number) tags.get(IMGLIST + chosenImage + ".ImageData.Dimensions.2")).intValue(); // Hovden
 														 // -
 														 // Sept
 														 // 6,
@@ -599,11 +751,268 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    fi1.gapBetweenImages = 0; // Hovden - Sept 6, 2010
 	}
 	// Get the offset of the Image Data for chosen image
-	fi1.offset = ((Long) tagHash.get(IMGLIST + chosenImage + ".ImageData.Data.Offset")).intValue();
+	// nb a long offset, as the data of large spectrum images starts beyond 2 GB
+	fi1.longOffset = ((Long) tags.get(IMGLIST + chosenImage + ".ImageData.Data.Offset")).longValue();
 
 	return fi1;
     }
 
+    String[] energyLabels(final int n) {
+	// Slice labels with the energy of each of n planes, as load() sets
+	// them for the stacks it has read
+	Calibration cal;
+	try {
+	    cal = getDM3CalibrationInfo(new Calibration());
+	} catch (final Exception e) {
+	    cal = new Calibration();
+	}
+	final String[] labels = new String[n];
+	for (int i = 0; i < n; i++)
+	    labels[i] = String.format("%.1f " + cal.getZUnit(), (i - cal.zOrigin) * cal.pixelDepth);
+	return labels;
+    }
+
+    Hyperslab askRegion(final FileInfo fi1) {
+	// the energy range is entered in calibrated units
+	Calibration cal;
+	try {
+	    cal = getDM3CalibrationInfo(new Calibration());
+	} catch (final Exception e) {
+	    cal = new Calibration();
+	}
+	final GenericDialog gd = new GenericDialog("DM3 Import Options");
+	final boolean mappable = MappedVirtualStack.supports(fi1.fileType);
+	if (mappable) {
+	    gd.addCheckbox("Virtual stack (memory-mapped)", Prefs.get(PREF_VIRTUAL, false));
+	    gd.addMessage("A virtual stack reads each energy plane from the file\n"
+		    + "when it is shown. It always holds the whole spectrum image;\n"
+		    + "the region below applies when the data is loaded into memory.");
+	}
+	Hyperslab.addFields(gd, fi1.width, fi1.height, fi1.nImages, cal);
+	gd.showDialog();
+	if (gd.wasCanceled())
+	    return null;
+	if (mappable) {
+	    virtual = gd.getNextBoolean();
+	    Prefs.set(PREF_VIRTUAL, virtual);
+	}
+	final Hyperslab region = Hyperslab.readFields(gd, fi1.width, fi1.height, fi1.nImages, cal);
+	// a virtual stack ignores the region
+	if (mappable && virtual)
+	    return Hyperslab.all(fi1.width, fi1.height, fi1.nImages);
+	if (region == null)
+	    IJ.showMessage("DM3_Reader", "The selected region lies outside of the spectrum image.");
+	return region;
+    }
+
+    ImageStack readRegion(final FileInfo fi1, final Hyperslab region) throws IOException {
+	// Reads a region of the image as 32-bit planes. The pixels are stored
+	// row by row and plane by plane, so each row of the region is one
+	// contiguous run of bytes - and each plane is one if the region
+	// spans the full width.
+	// A binned region is summed plane by plane into the binned planes,
+	// so only one full size plane is held at any time.
+	final int bytes = fi1.getBytesPerPixel();
+	final boolean fullRows = region.width == fi1.width;
+	final int readPixels = fullRows ? region.width * region.height : region.width;
+	final ByteBuffer buffer = ByteBuffer.allocate(readPixels * bytes)
+		.order(fi1.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	final int width = region.binnedWidth();
+	final int height = region.binnedHeight();
+	final int depth = region.binnedDepth();
+	final ImageStack ims = new ImageStack(width, height);
+	final float[] plane = region.isBinned() ? new float[region.width * region.height] : null;
+	final RandomAccessFile raf = new RandomAccessFile(fi1.directory + fi1.fileName, "r");
+	try {
+	    final FileChannel channel = raf.getChannel();
+	    for (int k = 0; k < depth; k++) {
+		final float[] pixels = new float[width * height];
+		for (int b = 0; b < region.binZ; b++) {
+		    final long offset = fi1.getOffset()
+			    + (long) (region.z + k * region.binZ + b) * fi1.width * fi1.height * bytes;
+		    // without binning the plane is decoded straight into the pixels
+		    final float[] target = plane != null ? plane : pixels;
+		    for (int j = 0; j < region.height; j += fullRows ? region.height : 1) {
+			readFully(channel, buffer, offset + ((long) (region.y + j) * fi1.width + region.x) * bytes);
+			decodePixels(buffer, fi1.fileType, target, j * region.width);
+		    }
+		    if (plane != null) {
+			for (int j = 0; j < height * region.binY; j++)
+			    for (int i = 0; i < width * region.binX; i++)
+				pixels[(j / region.binY) * width + i / region.binX] += plane[j * region.width + i];
+		    }
+		}
+		ims.addSlice("", pixels);
+		IJ.showProgress(k + 1, depth);
+	    }
+	} finally {
+	    raf.close();
+	}
+	return ims;
+    }
+
+    static boolean isIntegerSpectrumImage(final int fileType) {
+	// The integer types in which spectrum images are recorded. Their
+	// planes are read by readPlanes(), all others keep their type and
+	// are read by FileOpener.
+	return fileType == FileInfo.GRAY16_SIGNED || fileType == FileInfo.GRAY16_UNSIGNED
+		|| fileType == FileInfo.GRAY32_INT;
+    }
+
+    ImageStack readPlanes(final FileInfo fi1) throws IOException {
+	// Reads all planes of a spectrum image as 32-bit planes. The planes
+	// are memory-mapped in runs and converted in the byte order of the
+	// file, on as many threads as ImageJ may use.
+	final float[][] planes = new float[fi1.nImages][fi1.width * fi1.height];
+	final RandomAccessFile raf = new RandomAccessFile(fi1.directory + fi1.fileName, "r");
+	try {
+	    final PlaneTask task = new PlaneTask(raf.getChannel(), fi1, planes, 0, planes.length,
+		    new AtomicInteger());
+	    final int threads = Prefs.getThreads();
+	    if (threads < 2) {
+		task.convert();
+	    } else {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+		    pool.invoke(task);
+		} catch (final ConvertException e) {
+		    throw e.getCause();
+		} finally {
+		    pool.shutdown();
+		}
+	    }
+	} finally {
+	    raf.close();
+	}
+	final ImageStack ims = new ImageStack(fi1.width, fi1.height);
+	for (int k = 0; k < planes.length; k++)
+	    ims.addSlice("", planes[k]);
+	return ims;
+    }
+
+    // Converts the planes first to last - 1, splitting them between tasks
+    // until each has about PLANE_CHUNK bytes
+    private static class PlaneTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final FileChannel channel;
+	private final FileInfo fi1;
+	private final float[][] planes;
+	private final int first, last;
+	private final AtomicInteger done;
+
+	PlaneTask(final FileChannel channel, final FileInfo fi1, final float[][] planes, final int first,
+		final int last, final AtomicInteger done) {
+	    this.channel = channel;
+	    this.fi1 = fi1;
+	    this.planes = planes;
+	    this.first = first;
+	    this.last = last;
+	    this.done = done;
+	}
+
+	@Override
+	protected void compute() {
+	    final long planeBytes = (long) fi1.getBytesPerPixel() * fi1.width * fi1.height;
+	    if ((last - first) * planeBytes > 2L * PLANE_CHUNK && last - first > 1) {
+		final int middle = (first + last) >>> 1;
+		invokeAll(new PlaneTask(channel, fi1, planes, first, middle, done),
+			new PlaneTask(channel, fi1, planes, middle, last, done));
+		return;
+	    }
+	    try {
+		convert();
+	    } catch (final IOException e) {
+		throw new ConvertException(e);
+	    }
+	}
+
+	void convert() throws IOException {
+	    final int planeBytes = fi1.getBytesPerPixel() * fi1.width * fi1.height;
+	    final int perRun = Math.max(1, PLANE_CHUNK / planeBytes);
+	    final ByteOrder order = fi1.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	    for (int k = first; k < last; k += perRun) {
+		final int n = Math.min(perRun, last - k);
+		final ByteBuffer run = channel.map(FileChannel.MapMode.READ_ONLY,
+			fi1.getOffset() + (long) k * planeBytes, (long) n * planeBytes);
+		for (int i = 0; i < n; i++) {
+		    run.limit((i + 1) * planeBytes).position(i * planeBytes);
+		    decodePixels(run.slice().order(order), fi1.fileType, planes[k + i], 0);
+		}
+		IJ.showProgress(done.addAndGet(n), planes.length);
+	    }
+	}
+    }
+
+    // Carries an IOException out of a PlaneTask
+    private static class ConvertException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	ConvertException(final IOException cause) {
+	    super(cause);
+	}
+
+	@Override
+	public synchronized IOException getCause() {
+	    return (IOException) super.getCause();
+	}
+    }
+
+    static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+	    throws IOException {
+	buffer.clear();
+	long pos = position;
+	while (buffer.hasRemaining()) {
+	    final int n = channel.read(buffer, pos);
+	    if (n < 0)
+		throw new EOFException("Unexpected end of file at " + pos);
+	    pos += n;
+	}
+	buffer.flip();
+    }
+
+    static void decodePixels(final ByteBuffer buffer, final int fileType, final float[] pixels, final int offset)
+	    throws IOException {
+	// Converts the remaining bytes of buffer to float pixels, starting at
+	// pixels[offset]. Signed and unsigned types keep their true values.
+	int i = offset;
+	switch (fileType) {
+	case FileInfo.GRAY8:
+	    while (buffer.hasRemaining())
+		pixels[i++] = buffer.get() & 0xff;
+	    break;
+	// the view buffers swap the bytes of a whole run at once
+	case FileInfo.GRAY16_SIGNED: {
+	    final ShortBuffer values = buffer.asShortBuffer();
+	    while (values.hasRemaining())
+		pixels[i++] = values.get();
+	    break;
+	}
+	case FileInfo.GRAY16_UNSIGNED: {
+	    final ShortBuffer values = buffer.asShortBuffer();
+	    while (values.hasRemaining())
+		pixels[i++] = values.get() & 0xffff;
+	    break;
+	}
+	case FileInfo.GRAY32_INT: {
+	    final IntBuffer values = buffer.asIntBuffer();
+	    while (values.hasRemaining())
+		pixels[i++] = values.get();
+	    break;
+	}
+	case FileInfo.GRAY32_UNSIGNED: {
+	    final IntBuffer values = buffer.asIntBuffer();
+	    while (values.hasRemaining())
+		pixels[i++] = values.get() & 0xffffffffL;
+	    break;
+	}
+	case FileInfo.GRAY32_FLOAT:
+	    buffer.asFloatBuffer().get(pixels, offset, buffer.remaining() / 4);
+	    break;
+	default:
+	    throw new IOException("Loading a region is not supported for this DM3 data type");
+	}
+    }
+
     Calibration getDM3CalibrationInfo(final Calibration cal) {
 	// get the spatial calibration information
 	// could also do brightness
@@ -613,9 +1022,9 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	// Figure out what the units are - need to check if nm is correct and
 	// if other units are likely
 	// also will µm get corrupted? may be necessary to do a unicode comparison
-	String unit = (String) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Units");
-	final String zUnit = (String) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Units");
-	final String valueUnit = (String) tagHash
+	String unit = (String) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Units");
+	final String zUnit = (String) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Units");
+	final String valueUnit = (String) tags
 		.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Brightness.Units");
 	if (unit == null)
 	    unit = "nm";
@@ -635,25 +1044,25 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	if (debugLevel > 0)
 	    IJ.log("Calibration unit: " + unit);
 
-	cal.pixelWidth = ((Float) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Scale"))
+	cal.pixelWidth = ((Float) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Scale"))
 		.doubleValue();
 	if (debugLevel > 0)
 	    IJ.log("pixelWidth: " + cal.pixelWidth);
-	if (tagHash.containsKey(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.1.Scale"))
-	    cal.pixelHeight = ((Float) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.1.Scale"))
+	if (tags.containsKey(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.1.Scale"))
+	    cal.pixelHeight = ((Float) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.1.Scale"))
 		    .doubleValue();
 	else {
 	    cal.pixelHeight = 1;
 	}
-	if (tagHash.containsKey(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Scale")) {
-	    cal.pixelDepth = ((Float) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Scale"))
+	if (tags.containsKey(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Scale")) {
+	    cal.pixelDepth = ((Float) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Scale"))
 		    .doubleValue();
-	    cal.zOrigin = ((Float) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Origin"))
+	    cal.zOrigin = ((Float) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.2.Origin"))
 		    .doubleValue();
 	} else {
-	    cal.pixelDepth = ((Float) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Scale"))
+	    cal.pixelDepth = ((Float) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Scale"))
 		    .doubleValue();
-	    cal.zOrigin = ((Float) tagHash.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Origin"))
+	    cal.zOrigin = ((Float) tags.get(IMGLIST + chosenImage + ".ImageData.Calibrations.Dimension.0.Origin"))
 		    .doubleValue();
 	}
 	return cal;
@@ -671,15 +1080,15 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    IJ.log("rTG: Current Group Level: " + curGroupLevel);
 
 	@SuppressWarnings("unused")
-	final int isSorted = f.readByte();
+	final int isSorted = need(1).get();
 	@SuppressWarnings("unused")
-	final int isOpen = f.readByte();
-	final int nTags = f.readInt();
+	final int isOpen = need(1).get();
+	final long nTags = readCount();
 
 	if (debugLevel > 5)
 	    IJ.log("rTG: Iterating over the " + nTags + " tag entries in this group");
 	// Iterate over the number of Tag Entries in this group
-	for (int i = 0; i < nTags; i++) {
+	for (long i = 0; i < nTags && !probeDone; i++) {
 	    readTagEntry();
 	}
 
@@ -701,19 +1110,22 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
     }
 
     int readTagEntry() throws IOException {
-	final int isData = f.readByte();
+	final int isData = need(1).get();
 
 	// Record that we've found a new tag at this level
 	curTagAtLevelX[curGroupLevel]++;
 
 	// Get the tag label if one exists
-	final int lenTagLabel = f.readShort();
+	final int lenTagLabel = need(2).getShort();
 	String tagLabel;
 	if (lenTagLabel != 0) {
-	    tagLabel = readString(lenTagLabel);
+	    tagLabel = tags.label(readString(lenTagLabel));
 	} else {
-	    tagLabel = new String("" + curTagAtLevelX[curGroupLevel]);
+	    tagLabel = tags.label(Integer.toString(curTagAtLevelX[curGroupLevel]));
 	}
+	// DM4 has the size of the whole tag here, which is not needed
+	if (dm4)
+	    need(8).getLong();
 
 	// For debugging
 	if (debugLevel > 5) {
@@ -727,7 +1139,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    // this tag entry is data
 
 	    // OK settle what this piece of data will be called
-	    curTagName = new String(makeGroupNameString() + "." + tagLabel);
+	    curTagLabel = tagLabel;
 
 	    // now get it
 	    readTagType();
@@ -735,33 +1147,30 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    // this tag entry is a tag group
 
 	    // Slightly ugly that this can't be done in readTagGroup
-	    curGroupNameAtLevelX[curGroupLevel + 1] = tagLabel; // Store the name of the group at the new level
+	    final DM3Tags.Group parent = curGroup;
+	    final boolean kept = keepTags;
+	    curGroup = tags.group(parent, tagLabel); // the group at the new level
+	    if (probing)
+		keepTags = isProbed(curGroup.path());
 	    readTagGroup(); // which will actually increment curGroupLevel
+	    curGroup = parent;
+	    keepTags = kept;
+	    // everything a probe needs is in the ImageList
+	    if (probing && parent == tags.root() && tagLabel.equals("ImageList"))
+		probeDone = true;
 	}
 	return 1;
     }
 
-    String makeGroupNameString() {
-	// A utility function:
-	// Produces a string which is the concatenation of the current group names
-	String tString = new String(curGroupNameAtLevelX[0]);
-
-	for (int i = 1; i <= curGroupLevel; i++) {
-	    tString += "." + curGroupNameAtLevelX[i];
-	}
-
-	return tString;
-    }
-
     int readTagType() throws IOException {
-	final int Delim = f.readInt();
+	final int Delim = need(4).getInt();
 	// Should always start with %%%%
 	if (Delim != 0x25252525)
 	    throw new IOException("Tag Type delimiter not %%%%");
 
 	// This is redundant info, so just ignore it.
 	@SuppressWarnings("unused")
-	final int nInTag = f.readInt();
+	final long nInTag = readCount();
 
 	readAnyData();
 
@@ -774,7 +1183,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
 	// This specifies what kind of type we are dealing with
 	// eg short, long, struct, array etc.
-	final int encodedType = f.readInt();
+	final int encodedType = (int) readCount();
 
 	// Figure out the size of the encodedType
 	final int etSize = encodedTypeSize(encodedType);
@@ -783,13 +1192,18 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
 	if (etSize > 0) {
 	    // must be a regular data type, so read it and store a tag for ir
-	    storeTag(curTagName, readNativeData(encodedType));
+	    final long bits = readNativeBits(encodedType);
+	    if (keepTags)
+		tags.add(curGroup, curTagLabel, encodedType, bits);
+	    if (debugLevel > 3 && keepTags) {
+		IJ.log("rND, 0x" + hexPosition() + ": " + tags.get(curGroup.path() + "." + curTagLabel));
+	    }
 	}
 	// OK then, perhaps it's an array, struct or string.
 	else if (encodedType == STRING) // String
 	{
 	    // nb readStringData will also store tags internally
-	    final int stringSize = f.readInt();
+	    final int stringSize = (int) readCount();
 	    readStringData(stringSize);
 	} else if (encodedType == STRUCT) // Struct
 	{
@@ -810,49 +1224,58 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	return 1;
     }
 
-    Object readNativeData(final int encodedType) throws IOException {
+    long readNativeBits(final int encodedType) throws IOException {
 	// Does the actual reading of ordinary data types
 
-	// since it starts as an object, it is not tied to a particular
-	// data type
-	Object val = null;
-
+	// the bits of the value are returned, so that they can be
+	// stored without boxing them
 	if (encodedType == SHORT) { // short
-	    val = new Short(blreadShort());
+	    return blreadShort();
 	} else if (encodedType == LONG) { // long
-	    val = new Integer(blreadInt());
+	    return blreadInt();
 	} else if (encodedType == USHORT) { // u short
-	    val = new Short(blreadUShort());
+	    return blreadUShort();
 	} else if (encodedType == ULONG) { // u long
-	    val = new Integer(blreadInt());
+	    return blreadInt();
 	} else if (encodedType == FLOAT) { // float
-	    val = new Float(blreadFloat());
-	} else if (encodedType == DOUBLE) { // double
-	    val = new Double(blreadDouble());
-	} else if (encodedType == BOOLEAN) { // boolean
-	    if (f.readByte() == 0) {
-		val = new Boolean(false);
-	    } else {
-		val = new Boolean(true);
-	    }
-	} else if (encodedType == CHAR) { // char
-	    val = new Character((char) f.readByte());
-	} else if (encodedType == OCTET) { // octet
-	    // what's the difference?
-	    val = new Byte(f.readByte());
+	    return blreadInt();
+	} else if (encodedType == DOUBLE || encodedType == LLONG || encodedType == ULLONG) {
+	    // double, long long, u long long
+	    return blreadLong();
+	} else if (encodedType == BOOLEAN || encodedType == CHAR || encodedType == OCTET) {
+	    // boolean, char, octet - what's the difference?
+	    return need(1).get();
 	} else {
 	    // Not a known data type
 	    throw new IOException("rND, 0x" + hexPosition() + ": Unknown data type " + encodedType);
 	}
+    }
 
-	// Print out the value if necessary
-	if (debugLevel > 3) {
-	    IJ.log("rND, 0x" + hexPosition() + ": " + val);
-	} else if (debugLevel > 0) {
-	    IJ.log("" + val);
+    Object readNativeData(final int encodedType) throws IOException {
+	// Reads an ordinary data type as an object, which is not tied
+	// to a particular data type
+	final long bits = readNativeBits(encodedType);
+	switch (encodedType) {
+	case SHORT:
+	case USHORT:
+	    return Short.valueOf((short) bits);
+	case LONG:
+	case ULONG:
+	    return Integer.valueOf((int) bits);
+	case FLOAT:
+	    return Float.valueOf(Float.intBitsToFloat((int) bits));
+	case DOUBLE:
+	    return Double.valueOf(Double.longBitsToDouble(bits));
+	case LLONG:
+	case ULLONG:
+	    return Long.valueOf(bits);
+	case BOOLEAN:
+	    return Boolean.valueOf(bits != 0);
+	case CHAR:
+	    return Character.valueOf((char) bits);
+	default: // OCTET
+	    return Byte.valueOf((byte) bits);
 	}
-
-	return val;
     }
 
     String readStringData(final int stringSize) throws IOException {
@@ -861,10 +1284,14 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	// converted by the String constructor
 	if (stringSize <= 0)
 	    return new String("");
+	if (!keepTags) {
+	    seek(position() + stringSize);
+	    return "";
+	}
 
 	// Read the string data into a temporary byte buffer.
 	final byte[] temp = new byte[stringSize];
-	f.read(temp, 0, stringSize);
+	need(stringSize).get(temp);
 
 	// Now convert these unicode bytes into a real string
 	String rString;
@@ -902,7 +1329,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    IJ.log("StringVal: " + rString);
 
 	// Store the value of this tag
-	storeTag(curTagName, rString);
+	tags.add(curGroup, curTagLabel, rString);
 
 	return rString;
     }
@@ -913,7 +1340,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
 	// Don't know if this will behave for arrays of strings or arrays
 
-	final int arrayType = f.readInt();
+	final int arrayType = (int) readCount();
 
 	Vector<Integer> itemTypes = new Vector<Integer>();
 	if (arrayType == STRUCT) { // ie a Struct
@@ -934,7 +1361,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	// Reads in array data
 
 	// First thing to do is get number of array elements
-	final int arraySize = f.readInt();
+	final long arraySize = readCount();
 	if (debugLevel > 3)
 	    IJ.log("rArD, 0x" + hexPosition() + ": Reading array of size = " + arraySize);
 
@@ -962,28 +1389,30 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
 	// OK now figure out what to do with this array
 	// this would be the buffer size needed to accommodate ot
-	final long bufSize = (long) arraySize * (long) itemSize;
+	final long bufSize = arraySize * itemSize;
 
 	// If this isn't image data but is an unsigned short array
 	// of less than 256 bytes then it is probably a string
-	if (!curTagName.endsWith("ImageData.Data") && arrayTypes.size() == 1 && encodedType == USHORT
-		&& arraySize < 256) {
+	final boolean imageData = curTagLabel.equals("Data") && curGroup.name.equals("ImageData");
+	if (!imageData && arrayTypes.size() == 1 && encodedType == USHORT && arraySize < 256) {
 	    // read in as string
 	    @SuppressWarnings("unused")
 	    final String val = readStringData((int) bufSize);
 	} else { // treat as binary data
 		 // Make up my own tags to indicate data size
-	    storeTag(curTagName + ".Size", new Long(bufSize));
+	    if (keepTags)
+		tags.add(curGroup, curTagLabel + ".Size", bufSize);
 	    // and current offset
 	    // nb for a while I had offset + 1but this was wrong!
 	    // and gave a peculiar staircase histogram because what I had
 	    // ended up doing was reading one byte each from a pair of pixels
 	    // rather than 2 bytes from a single pixel. Ugh!
-	    storeTag(curTagName + ".Offset", new Long(f.getFilePointer()));
+	    if (keepTags)
+		tags.add(curGroup, curTagLabel + ".Offset", position());
 
 	    // then go ahead and skip bufSize bytes from current position
 	    // without trying to read this data
-	    f.seek(f.getFilePointer() + bufSize);
+	    seek(position() + bufSize);
 	}
 	return 1;
     }
@@ -991,11 +1420,11 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
     Vector<Integer> readStructTypes() throws IOException {
 	// Figures out the data types in a struct
 	if (debugLevel > 3)
-	    IJ.log("Reading Struct Types at Pos = " + f.getFilePointer() + ", 0x" + hexPosition());
+	    IJ.log("Reading Struct Types at Pos = " + position() + ", 0x" + hexPosition());
 
 	@SuppressWarnings("unused")
-	final int structNameLength = f.readInt();
-	final int nFields = f.readInt();
+	final long structNameLength = readCount();
+	final long nFields = readCount();
 
 	if (debugLevel > 5)
 	    IJ.log("nFields = " + nFields);
@@ -1006,10 +1435,10 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	final Vector<Integer> fieldTypes = new Vector<Integer>();
 	int nameLength = 0;
 	for (int i = 0; i < nFields; i++) {
-	    nameLength = f.readInt();
+	    nameLength = (int) readCount();
 	    if (debugLevel > 10)
 		IJ.log(i + "th namelength = " + nameLength);
-	    final int fieldType = f.readInt();
+	    final int fieldType = (int) readCount();
 
 	    // add changed to addElement for Java 1.1.7 compatibility
 	    fieldTypes.addElement(new Integer(fieldType));
@@ -1020,6 +1449,13 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
     int readStructData(final Vector<Integer> structTypes) throws IOException {
 	// Reads in struct data based on the type info in structTypes
+	if (!keepTags) {
+	    long size = 0;
+	    for (int i = 0; i < structTypes.size(); i++)
+		size += encodedTypeSize(structTypes.elementAt(i).intValue());
+	    seek(position() + size);
+	    return 1;
+	}
 	String structAsString = "";
 
 	for (int i = 0; i < structTypes.size(); i++) {
@@ -1037,7 +1473,7 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    if (i + 1 != structTypes.size())
 		structAsString += ",";
 	}
-	storeTag(curTagName, "{" + structAsString + "}");
+	tags.add(curGroup, curTagLabel, "{" + structAsString + "}");
 	return 1;
     }
 
@@ -1072,32 +1508,23 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	    break;
 
 	case DOUBLE: // double: data size = 8
+	case LLONG: // long long: data size = 8
+	case ULLONG: // unsigned long long: data size = 8
 	    width1 = 8;
 	    break;
 	}
 	return (width1);
     }
 
-    // Store the value and key of the tag that we have just
-    // read in a table
-    void storeTag(final String tagName, final Object tagValue) {
-	// add changed to addElement for Java 1.1.7 compatibility
-	storedTags.addElement(new String(tagName + " = " + tagValue));
-	tagHash.put(tagName, tagValue);
-    }
-
     // ********************************************************
     // the bl methods will check value of littleEndian and read
-    // from the RandomAccessFile f accordingly.
+    // from the window f accordingly.
     // (bl for big/little - ie can cope with either endian format)
     // ********************************************************
 
     short blreadShort() throws IOException {
-	if (!littleEndian)
-	    return f.readShort();
-	final byte b1 = f.readByte();
-	final byte b2 = f.readByte();
-	return ((short) (((b2 & 0xff) << 8) | (b1 & 0xff)));
+	final short s = need(2).getShort();
+	return littleEndian ? Short.reverseBytes(s) : s;
     }
 
     short blreadUShort() throws IOException
@@ -1108,54 +1535,67 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
     // to convert, but then they would have to be stored as 4 byte ints
     // or something.
     {
-	if (!littleEndian)
-	    return (short) f.readUnsignedShort();
-	final byte b1 = f.readByte();
-	final byte b2 = f.readByte();
-	return ((short) (((b2 & 0xff) << 8) | (b1 & 0xff)));
+	return blreadShort();
     }
 
     int blreadInt() throws IOException {
-	if (!littleEndian)
-	    return f.readInt();
-	final byte b1 = f.readByte();
-	final byte b2 = f.readByte();
-	final byte b3 = f.readByte();
-	final byte b4 = f.readByte();
-	return ((((b4 & 0xff) << 24) | ((b3 & 0xff) << 16) | ((b2 & 0xff) << 8) | (b1 & 0xff)));
+	final int i = need(4).getInt();
+	return littleEndian ? Integer.reverseBytes(i) : i;
     }
 
-    long blreadLong() throws IOException
-    // New fn, not quite sure if the little endian version is correct
-    // OK Corrected now as far as I can tell
-    {
-	if (!littleEndian)
-	    return f.readLong();
-	final int i1 = blreadInt();
-	final int i2 = blreadInt();
-
-	// need to convert intermediates to long explicitly since the standard
-	// is presumably just to work with them as int
-	return (((long) (i2 & 0xffffffff) << 32) | i1 & 0xffffffff);
-
+    long blreadLong() throws IOException {
+	final long l = need(8).getLong();
+	return littleEndian ? Long.reverseBytes(l) : l;
     }
 
     double blreadDouble() throws IOException
     // new fn to read 8 byte doubles using blreadLong as a base
     {
-	if (!littleEndian)
-	    return f.readDouble();
-
-	final long orig = blreadLong();
-	return (Double.longBitsToDouble(orig));
+	return Double.longBitsToDouble(blreadLong());
     }
 
     float blreadFloat() throws IOException {
-	if (!littleEndian)
-	    return f.readFloat();
+	return Float.intBitsToFloat(blreadInt());
+    }
+
+    // Returns the window f with at least the next n bytes of the file
+    // in it, reading further into the file if necessary
+    ByteBuffer need(final int n) throws IOException {
+	if (f.remaining() >= n)
+	    return f;
+	fStart += f.position();
+	f.compact();
+	if (f.capacity() < n) {
+	    f.flip();
+	    f = ByteBuffer.allocate(n).put(f);
+	}
+	while (f.position() < n) {
+	    if (tagChannel.read(f, fStart + f.position()) < 0)
+		throw new EOFException("Unexpected end of file at pos = " + (fStart + f.position()));
+	}
+	f.flip();
+	return f;
+    }
+
+    // Reads one of the numbers that describe the tags - counts, sizes and
+    // types - which are 4 byte ints in DM3 and 8 byte longs in DM4 files
+    long readCount() throws IOException {
+	return dm4 ? need(8).getLong() : need(4).getInt();
+    }
+
+    long position() {
+	return fStart + f.position();
+    }
 
-	final int orig = blreadInt();
-	return (Float.intBitsToFloat(orig));
+    // Moves to pos; nothing is read until the next tag needs it
+    void seek(final long pos) {
+	if (pos >= fStart && pos <= fStart + f.limit()) {
+	    f.position((int) (pos - fStart));
+	} else {
+	    fStart = pos;
+	    f.clear();
+	    f.limit(0);
+	}
     }
 
     // used to read in field labels
@@ -1163,10 +1603,10 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 	// not sure if this readString limit is sensible or necessary
 	if (n > 2000)
 	    throw new IOException(
-		    "Can't handle strings longer than 2000 chars, n = " + n + " at pos = " + f.getFilePointer());
+		    "Can't handle strings longer than 2000 chars, n = " + n + " at pos = " + position());
 
 	final byte[] temp = new byte[n];
-	f.read(temp, 0, n);
+	need(n).get(temp);
 
 	return new String(temp);
 
@@ -1174,7 +1614,29 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn {
 
     String hexPosition() throws IOException {
 	// Utility fn to return current file position in hex
-	return (Long.toHexString(f.getFilePointer()));
+	return (Long.toHexString(position()));
+    }
+
+    // An image whose Info property - the list of all tags - is only
+    // written out when something asks for it, e.g. Image>Show Info
+    static class TaggedImage extends ImagePlus {
+	private DM3Tags tags;
+
+	TaggedImage(final ImagePlus imp, final DM3Tags tags) {
+	    super(imp.getTitle(), imp.getStack());
+	    setCalibration(imp.getCalibration());
+	    setFileInfo(imp.getOriginalFileInfo());
+	    this.tags = tags;
+	}
+
+	@Override
+	public synchronized Object getProperty(final String key) {
+	    if (tags != null && "Info".equals(key)) {
+		setProperty("Info", tags.toString());
+		tags = null;
+	    }
+	    return super.getProperty(key);
+	}
     }
 
     /**
@@ -0,0 +1,90 @@
+package edu.cornell.csi;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.mindprod.ledatastream.LEChannelOutputStream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI Spectrum Analyzer.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * Saves the current image or stack, e.g. a spectrum image or the maps computed from it, as raw little-endian 32-bit
+ * float values, one slice after the other and without a header. The values are calibrated as
+ * ImageProcessor.getPixelValue() returns them. The file can be read back with File>Import>Raw using the layout that
+ * is written to the log.
+ */
+public class CSI_Raw_Export implements PlugIn {
+
+    @Override
+    public void run(final String arg) {
+	final ImagePlus imp = IJ.getImage();
+	if (imp.getBitDepth() == 24) {
+	    IJ.error("CSI Raw Export", "RGB images can not be exported.");
+	    return;
+	}
+	final SaveDialog sd = new SaveDialog("Export Raw Floats...", imp.getTitle(), ".raw");
+	if (sd.getFileName() == null) {
+	    return;
+	}
+	final File file = new File(sd.getDirectory(), sd.getFileName());
+	final long start = System.currentTimeMillis();
+	try {
+	    save(imp, file);
+	} catch (final IOException e) {
+	    IJ.error("CSI Raw Export", "Could not write " + file + ": " + e.getMessage());
+	    return;
+	}
+	final double seconds = (System.currentTimeMillis() - start) / 1000.0;
+	IJ.log("CSI: " + file + ": 32-bit real, little-endian, " + imp.getWidth() + " x " + imp.getHeight() + " x "
+		+ imp.getStackSize() + ", no header (" + IJ.d2s(file.length() / 1048576.0 / Math.max(seconds, 0.001), 1)
+		+ " MB/s)");
+    }
+
+    /*
+     * Writes the slices of imp to file as little-endian floats, the rows of each slice from top to bottom.
+     */
+    public static void save(final ImagePlus imp, final File file) throws IOException {
+	final ImageStack stack = imp.getStack();
+	final float[] cTable = imp.getCalibration().getCTable();
+	final LEChannelOutputStream out = new LEChannelOutputStream(file);
+	try {
+	    for (int n = 1; n <= stack.getSize(); n++) {
+		final float[] values = SpectrumCube.calibratedPixels(stack, n, cTable);
+		out.writeFloats(values, 0, values.length);
+		IJ.showProgress(n, stack.getSize());
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+}
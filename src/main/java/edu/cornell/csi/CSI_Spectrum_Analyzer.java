@@ -4,6 +4,7 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.Desktop;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.FlowLayout;
 import java.awt.Frame;
 import java.awt.GridBagConstraints;
@@ -114,7 +115,7 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
     SpectrumData state; // Image data class
 
     // CSI_Spectrum_Analyzer state variables
-    boolean twoptcalib, isCalibrating, meanCentering = false, weightedPCA = false;
+    boolean twoptcalib, isCalibrating, meanCentering = false, weightedPCA = false, fitMaps = false;
 
     // GUI Elements
     JButton butIntegrate, butHCMIntegrate, butPCA, butSubtract, butCancelCalibration, butCalibrate;
@@ -129,7 +130,7 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
     JMenuItem miTwoPointCalibration, miOnePointCalibration, miAbout, miDoc, miChangeColorCSI, miChangeColorCornell,
 	    miChangeColorCollegiate, miChangeColorCorporate;
     JPopupMenu pm;
-    JCheckBoxMenuItem miScaleCounts, miMeanCentering, miWeightedPCA;
+    JCheckBoxMenuItem miScaleCounts, miMeanCentering, miWeightedPCA, miFitMaps;
     JPanel panRad = new JPanel(), panAll = new JPanel();
     Color colZeroLine, colIntWindow, colSubtracted, colData, colDataFill, colBackFill, colBackgroundFit,
 	    colBackgroundWindow;
@@ -456,6 +457,8 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		meanCentering = miMeanCentering.getState();
 	    } else if (b == miWeightedPCA) {
 		weightedPCA = miWeightedPCA.getState();
+	    } else if (b == miFitMaps) {
+		fitMaps = miFitMaps.getState();
 	    } else if (b == comFit) { // If combo box (drop-down menu) is clicked
 		final String fitType = comFit.getSelectedItem().toString();
 		if (fitType.equals("No Fit")) { // Set fit state
@@ -1040,6 +1043,10 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	miWeightedPCA.addItemListener(new TestListener());
 	optionsMenu.add(miWeightedPCA);
 
+	miFitMaps = new JCheckBoxMenuItem("Show the background and fit maps when integrating.", false);
+	miFitMaps.addItemListener(new TestListener());
+	optionsMenu.add(miFitMaps);
+
 	final JMenu colorMenu = new JMenu("Change color scheme.");
 	miChangeColorCSI = new JMenuItem("CSI Classic");
 	miChangeColorCSI.addActionListener(new TestListener());
@@ -1077,39 +1084,124 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
     }
 
     /*
-     * Generic least squares fit class.
+     * Generic least squares fit class. fy(y) = c0 + c1 * fx(x) is fitted to the channels start to end - 1 of each
+     * spectrum. The two coefficients follow in closed form from the sums of fy(y) and fx(x) * fy(y) over the channels,
+     * which are accumulated one channel at a time, so the only memory needed is the coefficients. fx(x) is taken
+     * relative to its mean over the channels, which keeps the sums well conditioned. Fits whose coefficients are not
+     * determined, because there are fewer than two channels or fx(x) is the same for all of them, give c0 = c1 = 0.
      */
     abstract class Fit {
 	double ymin = 1;
-	public Jama.Matrix Residual;
 
+	/*
+	 * Fits the columns of y, the spectra, and returns c0 and c1 of each in the rows of a 2 x columns matrix.
+	 */
 	Jama.Matrix createFit(final double[] x, final Jama.Matrix y, final int start, final int end) {
-	    final int s = end - start;
 	    final int col = y.getColumnDimension();
-	    final Jama.Matrix m = new Jama.Matrix(s, 2);
-	    final Jama.Matrix n = new Jama.Matrix(s, col);
-	    Jama.Matrix coeffs = new Jama.Matrix(2, col);
+	    final Jama.Matrix coeffs = new Jama.Matrix(2, col);
+	    final double[] dx = centredFx(x, start, end);
+	    if (dx == null) {
+		return coeffs;
+	    }
+	    final double[][] rows = y.getArray();
+	    final double[][] sums = coeffs.getArray();
+	    for (int k = start; k < end; k++) {
+		final double[] row = rows[k];
+		final double d = dx[k - start];
+		for (int i = 0; i < col; i++) {
+		    final double f = fy(row[i]);
+		    sums[0][i] += f;
+		    sums[1][i] += d * f;
+		}
+	    }
+	    solve(sums, dx, 0, col);
+	    return coeffs;
+	}
 
-	    // ymin = (new JamaDenseDoubleMatrix2D(y)).getMinValue();
-	    // if (ymin>1)
-	    // ymin = 1;
-	    // y.plusEquals(new Jama.Matrix(y.getRowDimension(), col, -ymin+1));
+	/*
+	 * Fits the spectra of the pixels of stack, reading the slices start + 1 to end, and returns c0 and c1 in two
+	 * arrays indexed like the pixels of a slice. The pixels are fitted in tiles on as many threads as ImageJ may
+	 * use, each pixel exactly as createFit() does for a column of a matrix.
+	 */
+	double[][] createFit(final double[] x, final ImageStack stack, final int start, final int end) {
+	    final double[][] sums = new double[2][stack.getWidth() * stack.getHeight()];
+	    final double[] dx = centredFx(x, start, end);
+	    if (dx == null) {
+		return sums;
+	    }
+	    new StackSweep() {
+		@Override
+		protected void add(final int n, final int k, final ImageProcessor ip, final int from, final int to) {
+		    final double d = dx[k - start];
+		    for (int p = from; p < to; p++) {
+			final double f = fy(ip.getf(p));
+			sums[0][p] += f;
+			sums[1][p] += d * f;
+		    }
+		}
+	    }.run(stack, start, end);
+	    solve(sums, dx, 0, sums[0].length);
+	    return sums;
+	}
 
+	/*
+	 * Returns the residual fit - fy(yi) of channel xi, in the space of fy() in which the fit is made.
+	 */
+	double residual(final double c0, final double c1, final double xi, final double yi) {
+	    return c0 + c1 * fx(xi) - fy(yi);
+	}
+
+	/*
+	 * Returns true if createFit() for a stack is the closed-form fit of this class, the sums of which can be
+	 * added up channel by channel by others, as FitIntegration does.
+	 */
+	boolean streams() {
+	    return true;
+	}
+
+	/*
+	 * Returns fx(x) of the channels start to end - 1 minus their mean, followed by the mean, or null if the fit
+	 * is not determined.
+	 */
+	double[] centredFx(final double[] x, final int start, final int end) {
+	    final int s = end - start;
+	    if (s < 2) {
+		return null;
+	    }
+	    final double[] dx = new double[s + 1];
+	    double mean = 0;
 	    for (int k = 0; k < s; k++) {
-		m.set(k, 0, 1);
-		m.set(k, 1, fx(x[k + start]));
-		for (int i = 0; i < col; i++) {
-		    n.set(k, i, fy(y.get(k + start, i)));
-		}
+		dx[k] = fx(x[k + start]);
+		mean += dx[k];
+	    }
+	    mean /= s;
+	    double sxx = 0;
+	    for (int k = 0; k < s; k++) {
+		dx[k] -= mean;
+		sxx += dx[k] * dx[k];
 	    }
+	    if (!(sxx > 0)) {
+		return null;
+	    }
+	    dx[s] = mean;
+	    return dx;
+	}
 
-	    try {
-		coeffs = m.solve(n);
-		Residual = m.times(coeffs).minus(n);
-	    } catch (final Exception e) {
-		return coeffs;
+	/*
+	 * Replaces the sums of fy(y) and (fx(x) - mean) * fy(y) of the spectra from to to - 1 by c0 and c1.
+	 */
+	void solve(final double[][] sums, final double[] dx, final int from, final int to) {
+	    final int s = dx.length - 1;
+	    final double mean = dx[s];
+	    double sxx = 0;
+	    for (int k = 0; k < s; k++) {
+		sxx += dx[k] * dx[k];
+	    }
+	    for (int i = from; i < to; i++) {
+		final double c1 = sums[1][i] / sxx;
+		sums[0][i] = sums[0][i] / s - c1 * mean;
+		sums[1][i] = c1;
 	    }
-	    return coeffs;
 	}
 
 	protected abstract double getFitAtX(double c0, double c1, double xi);
@@ -1128,6 +1220,16 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    return new Jama.Matrix(2, y.getColumnDimension());
 	}
 
+	@Override
+	double[][] createFit(final double[] x, final ImageStack stack, final int start, final int end) {
+	    return new double[2][stack.getWidth() * stack.getHeight()];
+	}
+
+	@Override
+	boolean streams() {
+	    return false;
+	}
+
 	@Override
 	protected double getFitAtX(final double c0, final double c1, final double xi) {
 	    return 0;
@@ -1170,6 +1272,38 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    return (new Jama.Matrix(2, 1, 1.0)).times(coeffs);
 	}
 
+	@Override
+	double[][] createFit(final double[] x, final ImageStack stack, final int start, final int end) {
+	    final int pixels = stack.getWidth() * stack.getHeight();
+	    final double[][] coeffs = new double[2][pixels];
+	    if (end <= start) {
+		return coeffs;
+	    }
+	    new StackSweep() {
+		@Override
+		protected void add(final int n, final int k, final ImageProcessor ip, final int from, final int to) {
+		    for (int p = from; p < to; p++) {
+			coeffs[0][p] += fy(ip.getf(p));
+		    }
+		}
+	    }.run(stack, start, end);
+	    for (int p = 0; p < pixels; p++) {
+		coeffs[0][p] /= end - start;
+		coeffs[1][p] = coeffs[0][p];
+	    }
+	    return coeffs;
+	}
+
+	@Override
+	double residual(final double c0, final double c1, final double xi, final double yi) {
+	    return c0 - fy(yi);
+	}
+
+	@Override
+	boolean streams() {
+	    return false;
+	}
+
 	@Override
 	protected double getFitAtX(final double c0, final double c1, final double xi) {
 	    return c0;
@@ -1284,13 +1418,40 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 
 	    try {
 		coeffs = m.solve(n);
-		Residual = m.times(coeffs).minus(n);
 	    } catch (final Exception e) {
 		return coeffs;
 	    }
 	    return coeffs;
 	}
 
+	/*
+	 * The exponents are chosen from the power law fits of all spectra, so the fit channels are copied into a
+	 * matrix first.
+	 */
+	@Override
+	double[][] createFit(final double[] x, final ImageStack stack, final int start, final int end) {
+	    final int pixels = stack.getWidth() * stack.getHeight();
+	    final Jama.Matrix y = new Jama.Matrix(Math.max(0, end - start), pixels);
+	    final double[][] rows = y.getArray();
+	    for (int k = start; k < end; k++) {
+		final ImageProcessor ip = stack.getProcessor(k + 1);
+		for (int p = 0; p < pixels; p++) {
+		    rows[k - start][p] = ip.getf(p);
+		}
+	    }
+	    return createFit(Arrays.copyOfRange(x, start, Math.max(start, end)), y, 0, end - start).getArray();
+	}
+
+	@Override
+	double residual(final double c0, final double c1, final double xi, final double yi) {
+	    return c0 * Math.pow(xi, R1) + c1 * Math.pow(xi, R2) - fy(yi);
+	}
+
+	@Override
+	boolean streams() {
+	    return false;
+	}
+
 	@Override
 	protected double getFitAtX(final double c0, final double c1, final double xi) {
 	    if (c0 == 0 && c1 == 0)
@@ -1310,59 +1471,138 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	}
     }
 
-    private class ModelFit {
-	Jama.Matrix[] backgroundsAndEdges = null;
-
-	void createModelNoG(final double[] x, final Jama.Matrix y, final int bStart, final int bEnd, final int eStart,
-		final int eEnd, final Fit fit) {
-	    final Jama.Matrix bcoeffs = fit.createFit(x, y, bStart, bEnd);
+    /*
+     * Fits the background of every pixel of a spectrum image and integrates its signal in a single pass over the
+     * channels of the background window and of the integration window, which are the only channels read. The sums of
+     * the fit of a tile of pixels are added up while its background channels stream past, and turned into the fit
+     * coefficients of the tile before its first integration channel, from which on the background subtracted signal
+     * and the background itself are summed. A scaled integration, as done by fitToModel(), first scales the fitted
+     * background of each pixel to its data in the background window, for which the background channels are read a
+     * second time in the same pass. Coefficients that come from somewhere else, e.g. a smoothed copy of the data or
+     * a fit that is not done channel by channel, can be given; then the pass only integrates.
+     */
+    private class FitIntegration {
+	private final Fit fit;
+	private final double[] x;
+	private final int fitStart, fitEnd;
+	private final int[] intChannels;
+	private final boolean scaled;
+	// the maps: c0 and c1 of each pixel, its signal and background summed over the integration channels and,
+	// for a scaled integration, the factor its background was scaled with
+	double[][] coeffs;
+	double[] signal, background, scale;
+	// for a scaled integration, the sums of fit * fit and fit * data over the background window
+	private double[] mm, my;
+
+	FitIntegration(final Fit fit, final double[] x, final int fitStart, final int fitEnd, final int[] intChannels,
+		final boolean scaled) {
+	    this.fit = fit;
+	    this.x = x;
+	    this.fitStart = fitStart;
+	    this.fitEnd = fitEnd;
+	    this.intChannels = intChannels;
+	    this.scaled = scaled;
+	}
 
-	    backgroundsAndEdges = new Jama.Matrix[y.getColumnDimension()];
-	    for (int p = 0; p < y.getColumnDimension(); p++) {
-		backgroundsAndEdges[p] = new Jama.Matrix(bEnd - bStart + eEnd - eStart, 1);
-		for (int e = 0; e < bEnd - bStart; e++) {
-		    backgroundsAndEdges[p].set(e, 0,
-			    fit.getFitAtX(bcoeffs.get(0, p), bcoeffs.get(1, p), x[e + bStart]));
-		}
-		for (int e = 0; e < eEnd - eStart; e++) {
-		    backgroundsAndEdges[p].set(e + bEnd - bStart, 0,
-			    fit.getFitAtX(bcoeffs.get(0, p), bcoeffs.get(1, p), x[e + eStart]));
+	/*
+	 * Runs the pass over stack. given are the fit coefficients of the pixels, or null to fit them to stack.
+	 */
+	void run(final ImageStack stack, final double[][] given) {
+	    final int pixels = stack.getWidth() * stack.getHeight();
+	    final double[] dx;
+	    if (given == null && fit.streams()) {
+		coeffs = new double[2][pixels];
+		dx = fit.centredFx(x, fitStart, fitEnd);
+	    } else {
+		coeffs = given == null ? fit.createFit(x, stack, fitStart, fitEnd) : given;
+		dx = null;
+	    }
+	    signal = new double[pixels];
+	    background = new double[pixels];
+	    if (scaled) {
+		scale = new double[pixels];
+		mm = new double[pixels];
+		my = new double[pixels];
+	    }
+	    // the channels of the fit, those of the scaling and the integration channels, one after the other
+	    final int nFit = dx == null ? 0 : fitEnd - fitStart;
+	    final int nScale = scaled ? Math.max(0, fitEnd - fitStart) : 0;
+	    final int[] channels = new int[nFit + nScale + intChannels.length];
+	    for (int n = 0; n < nFit + nScale; n++) {
+		channels[n] = fitStart + (n < nFit ? n : n - nFit);
+	    }
+	    System.arraycopy(intChannels, 0, channels, nFit + nScale, intChannels.length);
+
+	    new StackSweep() {
+		@Override
+		protected void add(final int n, final int k, final ImageProcessor ip, final int from, final int to) {
+		    if (n < nFit) {
+			final double d = dx[n];
+			for (int p = from; p < to; p++) {
+			    final double f = fit.fy(ip.getf(p));
+			    coeffs[0][p] += f;
+			    coeffs[1][p] += d * f;
+			}
+			return;
+		    }
+		    if (n == nFit && nFit > 0) {
+			fit.solve(coeffs, dx, from, to);
+		    }
+		    final double xk = x[k];
+		    if (n < nFit + nScale) {
+			for (int p = from; p < to; p++) {
+			    final double m = fit.getFitAtX(coeffs[0][p], coeffs[1][p], xk);
+			    mm[p] += m * m;
+			    my[p] += m * ip.getf(p);
+			}
+			return;
+		    }
+		    if (n == nFit + nScale && nScale > 0) {
+			scale(from, to);
+		    }
+		    for (int p = from; p < to; p++) {
+			final double m = fit.getFitAtX(coeffs[0][p], coeffs[1][p], xk);
+			if (scaled) {
+			    signal[p] += ip.getf(p) - scale[p] * m;
+			    background[p] += scale[p] * m;
+			} else {
+			    signal[p] += ip.getf(p);
+			    signal[p] -= m;
+			    background[p] += m;
+			}
+		    }
 		}
+	    }.run(stack, channels);
+	    // the steps that come before channels that are not there
+	    if (nFit > 0 && nScale + intChannels.length == 0) {
+		fit.solve(coeffs, dx, 0, pixels);
 	    }
+	    if (nScale > 0 && intChannels.length == 0) {
+		scale(0, pixels);
+	    }
+	    mm = null;
+	    my = null;
 	}
 
-	double[][] createFitNoG(final Jama.Matrix y, final int bStart, final int bEnd, final int eStart,
-		final int eEnd) {
-	    final int sb = bEnd - bStart;
-	    final int se = eEnd - eStart;
-	    final int col = y.getColumnDimension();
-	    Jama.Matrix m;
-	    Jama.Matrix n;
-	    Jama.Matrix coeffs;
-	    final double[][] bAndE = new double[2][col];
-	    double pix;
+	// the least squares factors of the fitted backgrounds of the pixels from to to - 1, 0 if there is no fit
+	private void scale(final int from, final int to) {
+	    for (int p = from; p < to; p++) {
+		scale[p] = mm[p] == 0 ? 0 : my[p] / mm[p];
+	    }
+	}
 
-	    for (int p = 0; p < col; p++) {
-		m = new Jama.Matrix(sb, 1);
-		n = new Jama.Matrix(sb, 1);
-		coeffs = new Jama.Matrix(1, 1);
-		for (int e = 0; e < sb; e++) {
-		    m.set(e, 0, backgroundsAndEdges[p].get(e, 0));
-		    n.set(e, 0, y.get(e + bStart, p));
-		}
-		try {
-		    coeffs = m.solve(n);
-		} catch (final Exception e) {
-		    return bAndE;
-		}
-		bAndE[0][p] = coeffs.get(0, 0);
-		pix = 0;
-		for (int e = 0; e < se; e++) {
-		    pix += y.get(e + eStart, p) - bAndE[0][p] * backgroundsAndEdges[p].get(e + sb, 0);
-		}
-		bAndE[1][p] = pix;
+	/*
+	 * Returns the background, the fit coefficients and, if scaled, the scale of the pixels as a stack of maps.
+	 */
+	ImagePlus maps(final String title, final int width, final int height) {
+	    final ImageStack maps = new ImageStack(width, height);
+	    maps.addSlice("Background", new FloatProcessor(width, height, background));
+	    maps.addSlice("c0", new FloatProcessor(width, height, coeffs[0]));
+	    maps.addSlice("c1", new FloatProcessor(width, height, coeffs[1]));
+	    if (scaled) {
+		maps.addSlice("Scale", new FloatProcessor(width, height, scale));
 	    }
-	    return bAndE;
+	    return new ImagePlus(title, maps);
 	}
     }
 
@@ -1387,6 +1627,8 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	ImagePlus img1;
 	Fit fit;
 	PlotWindow pwin;
+	final LiveListener live = new LiveListener();
+	SpectrumCube cube; // spectra of the pixels in one piece, once they have been copied
 
 	abstract ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd);
 
@@ -1432,10 +1674,69 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		canvas.addMouseListener(this);
 		canvas.addMouseMotionListener(this);
 		canvas.addKeyListener(this);
+		ImagePlus.addImageListener(live);
 		positionPlotWindow();
 	    }
 	}
 
+	/*
+	 * Refreshes the profile when the reader has added spectra to the image, as it does while a SER file is still
+	 * being acquired. The copy of the spectra is made again when the image has been given another stack or
+	 * calibration table; other updates, such as redraws, contrast changes or moving to another slice, keep it.
+	 */
+	private class LiveListener implements ImageListener {
+	    private Object spectra;
+
+	    @Override
+	    public void imageUpdated(final ImagePlus imp) {
+		if (imp != img1 || listenersRemoved)
+		    return;
+		final Object current = imp.getProperty(CSI_TIA_Reader.LIVE_PROPERTY);
+		if (current == null) {
+		    final SpectrumCube copy = cube;
+		    if (copy == null || copy.matches(imp))
+			return;
+		    EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+			    if (cube != copy || listenersRemoved)
+				return;
+			    closeCube();
+			    cube = SpectrumCube.start(img1);
+			}
+		    });
+		    return;
+		}
+		if (current.equals(spectra))
+		    return;
+		spectra = current;
+		EventQueue.invokeLater(new Runnable() {
+		    @Override
+		    public void run() {
+			closeCube(); // the copy misses the new spectra
+			final double[] profile = getProfile();
+			if (profile != null) {
+			    y = profile;
+			    updateProfile();
+			}
+		    }
+		});
+	    }
+
+	    @Override
+	    public void imageOpened(final ImagePlus imp) {
+		return;
+	    }
+
+	    @Override
+	    public void imageClosed(final ImagePlus imp) {
+		if (imp == img1) {
+		    ImagePlus.removeImageListener(live);
+		    closeCube();
+		}
+	    }
+	}
+
 	private class ResizeListener implements ComponentListener {
 
 	    @Override
@@ -1664,11 +1965,14 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    if ((r.width == 0 || r.height == 0) || (r.width == 1 && r.height == 1)) {
 		final int xpoint = e.getX();
 		final int ypoint = e.getY();
-		final float[] cTable = img1.getCalibration().getCTable();
-		for (int p = 1; p <= size; p++) {
-		    ip = stack.getProcessor(p);
-		    ip.setCalibrationTable(cTable);
-		    values[p - 1] = ip.getPixelValue(xpoint, ypoint);
+		final SpectrumCube spectra = cube;
+		if (spectra == null || !spectra.matches(img1) || !spectra.spectrum(xpoint, ypoint, values)) {
+		    final float[] cTable = img1.getCalibration().getCTable();
+		    for (int p = 1; p <= size; p++) {
+			ip = MappedVirtualStack.processorForReading(stack, p);
+			ip.setCalibrationTable(cTable);
+			values[p - 1] = ip.getPixelValue(xpoint, ypoint);
+		    }
 		}
 		y = values;
 		updateProfile();
@@ -1705,10 +2009,19 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    canvas.removeMouseListener(this);
 	    canvas.removeMouseMotionListener(this);
 	    canvas.removeKeyListener(this);
+	    ImagePlus.removeImageListener(live);
+	    closeCube();
 	    pwin = null;
 	    listenersRemoved = true;
 	}
 
+	void closeCube() {
+	    if (cube != null) {
+		cube.close();
+		cube = null;
+	    }
+	}
+
 	@Override
 	public void keyPressed(final KeyEvent e) {
 	    // not used
@@ -1830,6 +2143,17 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    return img1.getStackSize();
 	}
 
+	/*
+	 * Also starts copying the spectra into a SpectrumCube, from which single spectra and the mean spectra of area
+	 * selections are read once it is complete.
+	 */
+	@Override
+	void setup(final ImagePlus img) {
+	    super.setup(img);
+	    if (y != null && img.getProperty(CSI_TIA_Reader.LIVE_PROPERTY) == null)
+		cube = SpectrumCube.start(img);
+	}
+
 	@Override
 	ImagePlus fitToBosman(final int fitStart, final int fitEnd, final int intStart, final int intEnd) {
 	    final int width = img1.getWidth();
@@ -1889,7 +2213,6 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 
 	@Override
 	ImagePlus fitToModel(final int fitStart, final int fitEnd, final int intStart, final int intEnd) {
-	    final ModelFit mf = new ModelFit();
 	    final int width = img1.getWidth();
 	    final int height = img1.getHeight();
 	    ImageStack stack = img1.getStack();
@@ -1908,42 +2231,24 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		IJ.run(imgfilter, "Gaussian Blur...", "sigma=" + filtersize * 0.42466 + " stack");
 		stack = imgfilter.getStack();
 	    }
-	    ImageProcessor ip;
 	    ImageProcessor ipcoeff1;
 
-	    final Jama.Matrix yMat = new Jama.Matrix(size, width * height);
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k * 1.0 / (2 * size));
-		ip = stack.getProcessor(k + 1);
-		for (int i = 0; i < height; i++) {
-		    for (int j = 0; j < width; j++) {
-			yMat.set(k, width * i + j, ip.getf(j, i));
-		    }
-		}
-	    }
-	    mf.createModelNoG(x, yMat, fitStart, fitEnd, intStart, intEnd, fit);
-
 	    // IJ.run("Convolve...",
 	    // "text1=[-1 -4 -6 -4 -1\n-4 -16 -24 -16 -4\n-5 -20 -30 -20 -5\n0 0 0 0 0\n5 20 30 20 5\n4 16 24 16 4\n1 4
 	    // 6 4 1\n] normalize stack");
 	    // IJ.run("Convolve...",
 	    // "text1=[-1 -4 -5 0 5 4 1\n-4 -6 -20 0 20 16 4\n-6 -24 -30 0 30 24 6\n-4 -6 -20 0 20 16 4\n-1 -4 -5 0 5 4
 	    // 1\n] normalize stack");
-	    stack = img1.getStack();
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k * 1.0 / (2 * size) + .5);
-		ip = stack.getProcessor(k + 1);
-		for (int i = 0; i < height; i++) {
-		    for (int j = 0; j < width; j++) {
-			yMat.set(k, width * i + j, ip.getf(j, i));
-		    }
-		}
-	    }
-	    double[][] coeffs;
-	    coeffs = mf.createFitNoG(yMat, fitStart, fitEnd, intStart, intEnd);
-	    updateProgress(1);
-	    ipcoeff1 = new FloatProcessor(width, height, coeffs[1]);
-	    return new ImagePlus(
+	    final ImageStack data = img1.getStack();
+	    final int[] channels = new int[Math.max(0, intEnd - intStart)];
+	    for (int k = 0; k < channels.length; k++) {
+		channels[k] = intStart + k;
+	    }
+	    // the background is fitted to the smoothed data, if any, and scaled to the data itself
+	    final FitIntegration fi = new FitIntegration(fit, x, fitStart, fitEnd, channels, true);
+	    fi.run(data, stack == data ? null : fit.createFit(x, stack, fitStart, fitEnd));
+	    ipcoeff1 = new FloatProcessor(width, height, fi.signal);
+	    final ImagePlus imgint = new ImagePlus(
 		    "Integrated from " + String.format("%.1f", state.x[intStart]) + " " + state.xLabel + " to "
 			    + String.format("%.1f", state.x[intEnd]) + " " + state.xLabel + " of "
 			    + String.format("%.1f", filtersize) + " oversampled background subtracted via "
@@ -1951,7 +2256,10 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 			    + String.format("%.1f", state.x[fitStart]) + " " + state.xLabel + " to "
 			    + String.format("%.1f", state.x[fitEnd]) + " " + state.xLabel + " " + img1.getTitle(),
 		    ipcoeff1);
-
+	    if (fitMaps)
+		showFitMaps(fi, imgint.getTitle());
+	    updateProgress(1);
+	    return imgint;
 	}
 
 	@Override
@@ -1977,22 +2285,14 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    final ImageStack stacksub = new ImageStack(width, height);
 	    final ImageStack stackresidual = new ImageStack(width, height);
 	    ImageProcessor ipsub;
-	    ImageProcessor ip;
+	    ImageProcessor ip = null;
 	    ImageProcessor ipresidual = new FloatProcessor(1, 1);
 	    ImagePlus imgsub;
 	    double pix;
 
-	    final Jama.Matrix yMat = new Jama.Matrix(size, width * height);
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k * 1.0 / (2 * size));
-		ip = stack.getProcessor(k + 1);
-		for (int i = 0; i < width; i++) {
-		    for (int j = 0; j < height; j++) {
-			yMat.set(k, height * i + j, ip.getf(i, j));
-		    }
-		}
-	    }
-	    final Jama.Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+	    final ImageStack fitStack = stack;
+	    final double[][] coeffs = fit.createFit(x, fitStack, fitStart, fitEnd);
+	    updateProgress(.5);
 	    stack = img1.getStack();
 
 	    // ipcoeff0 = new FloatProcessor(height, width, coeffs.getArray()[0]);
@@ -2011,15 +2311,16 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		    if (k > fitStart && k < fitEnd) {
 			ipresidual = stack.getProcessor(k + 1).duplicate();
 			stackresidual.addSlice(stack.getSliceLabel(k + 1), ipresidual);
+			ip = fitStack.getProcessor(k + 1);
 		    }
 		    for (int i = 0; i < width; i++) {
 			for (int j = 0; j < height; j++) {
 			    pix = ipsub.getPixelValue(i, j)
-				    - fit.getFitAtX(coeffs.get(0, height * i + j), coeffs.get(1, height * i + j), x[k]);
+				    - fit.getFitAtX(coeffs[0][width * j + i], coeffs[1][width * j + i], x[k]);
 			    ipsub.putPixelValue(i, j, pix);
 			    if (k > fitStart && k < fitEnd)
-				ipresidual.putPixelValue(i, j,
-					Math.exp(fit.Residual.get(k - fitStart, height * i + j)));
+				ipresidual.putPixelValue(i, j, Math.exp(fit.residual(coeffs[0][width * j + i],
+					coeffs[1][width * j + i], x[k], ip.getf(i, j))));
 			}
 		    }
 		}
@@ -2046,7 +2347,6 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    // if (medianSize == 0){
 	    // stack = fitToBosman(fitStart, fitEnd, intStart, intEnd).getStack();
 	    // }
-	    ImageProcessor ip;
 	    final ImageProcessor ipint = stack.getProcessor(1).createProcessor(width, height);
 	    final ImagePlus imgint = new ImagePlus(
 		    "Integrated from " + String.format("%.1f", state.x[intStart]) + " " + state.xLabel + " to "
@@ -2055,43 +2355,36 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 			    + " fit from " + String.format("%.1f", state.x[fitStart]) + " " + state.xLabel + " to "
 			    + String.format("%.1f", state.x[fitEnd]) + " " + state.xLabel + " " + img1.getTitle(),
 		    ipint);
-	    double pix, c0, c1;
 
-	    final Jama.Matrix yMat = new Jama.Matrix(size, width * height);
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k * 1.0 / (2 * size));
-		ip = stack.getProcessor(k + 1);
-		for (int i = 0; i < width; i++) {
-		    for (int j = 0; j < height; j++) {
-			yMat.set(k, height * i + j, ip.getf(i, j));
-		    }
-		}
+	    // the two ends first, then the channels in between, leaving out the one before intEnd, as integrate()
+	    // always added them up
+	    final int[] channels = new int[2 + Math.max(0, intEnd - 2 - intStart)];
+	    channels[0] = intStart;
+	    channels[1] = intEnd;
+	    for (int k = intStart + 1; k < intEnd - 1; k++) {
+		channels[k - intStart + 1] = k;
 	    }
-	    final Jama.Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
-	    stack = img1.getStack();
-
-	    for (int i = 0; i < width; i++) {
-		updateProgress(.5 + i * 1.0 / (2 * width));
-		for (int j = 0; j < height; j++) {
-		    c0 = coeffs.get(0, height * i + j);
-		    c1 = coeffs.get(1, height * i + j);
-		    pix = stack.getProcessor(intStart + 1).getf(i, j);
-		    pix -= fit.getFitAtX(c0, c1, x[intStart]);
-		    pix += stack.getProcessor(intEnd + 1).getf(i, j);
-		    pix -= fit.getFitAtX(c0, c1, x[intEnd]);
-		    for (int k = intStart + 1; k < intEnd - 1; k++) {
-			pix += stack.getProcessor(k + 1).getf(i, j);
-			pix -= fit.getFitAtX(c0, c1, x[k]);
-		    }
-		    ipint.putPixelValue(i, j, pix);
-		}
+	    final FitIntegration fi = new FitIntegration(fit, x, fitStart, fitEnd, channels, false);
+	    fi.run(stack, null);
+	    for (int p = 0; p < fi.signal.length; p++) {
+		ipint.putPixelValue(p % width, p / width, fi.signal[p]);
 	    }
 	    imgint.setCalibration(img1.getCalibration());
 	    imgint.resetDisplayRange();
+	    if (fitMaps)
+		showFitMaps(fi, imgint.getTitle());
 	    updateProgress(1);
 	    return imgint;
 	}
 
+	void showFitMaps(final FitIntegration fi, final String title) {
+	    final ImagePlus maps = fi.maps("Background and fit of " + title, img1.getWidth(), img1.getHeight());
+	    maps.setCalibration(img1.getCalibration());
+	    maps.getCalibration().disableDensityCalibration();
+	    maps.show();
+	    maps.resetDisplayRange();
+	}
+
 	@Override
 	ImagePlus HCMintegrate(final int fitStart, final int fitEnd, final int intStart, final int intEnd) {
 	    final int width = img1.getWidth();
@@ -2105,23 +2398,14 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		    ipint);
 	    double pix, c0, c1, s, f;
 
-	    final Jama.Matrix yMat = new Jama.Matrix(size, width * height);
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k * 1.0 / (2 * size));
-		ip = stack.getProcessor(k + 1);
-		for (int i = 0; i < width; i++) {
-		    for (int j = 0; j < height; j++) {
-			yMat.set(k, height * i + j, ip.getf(i, j));
-		    }
-		}
-	    }
-	    final Jama.Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+	    final double[][] coeffs = fit.createFit(x, stack, fitStart, fitEnd);
+	    updateProgress(.5);
 
 	    for (int i = 0; i < width; i++) {
 		updateProgress(.5 + i * 1.0 / (2 * width));
 		for (int j = 0; j < height; j++) {
-		    c0 = coeffs.get(0, height * i + j);
-		    c1 = coeffs.get(1, height * i + j);
+		    c0 = coeffs[0][width * j + i];
+		    c1 = coeffs[1][width * j + i];
 		    f = stack.getProcessor(intStart + 1).getf(i, j);
 		    s = f - fit.getFitAtX(c0, c1, x[intStart]);
 		    pix = s * s / (2 * f);
@@ -2170,27 +2454,18 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    double c0, c1;
 	    final double[] pcax = new double[pcaEnd - pcaStart];
 
-	    Jama.Matrix yMat = new Jama.Matrix(size, width * height);
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k / (size * 4.0));
-		ip = stack.getProcessor(k + 1);
-		for (int j = 0; j < height; j++) {
-		    for (int i = 0; i < width; i++) {
-			yMat.set(k, width * j + i, ip.getf(i, j));
-		    }
-		}
-	    }
-	    final Jama.Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+	    final double[][] coeffs = fit.createFit(x, stack, fitStart, fitEnd);
+	    updateProgress(.25);
 
 	    stack = img1.getStack();
-	    yMat = new Jama.Matrix(pcaEnd - pcaStart, width * height);
+	    final Jama.Matrix yMat = new Jama.Matrix(pcaEnd - pcaStart, width * height);
 	    for (int k = pcaStart; k < pcaEnd; k++) {
 		updateProgress((k - pcaStart) / ((pcaEnd - pcaStart) * 4.0) + .25);
 		ip = stack.getProcessor(k + 1);
 		for (int j = 0; j < height; j++) {
 		    for (int i = 0; i < width; i++) {
-			c0 = coeffs.get(0, width * j + i);
-			c1 = coeffs.get(1, width * j + i);
+			c0 = coeffs[0][width * j + i];
+			c1 = coeffs[1][width * j + i];
 			yMat.set(k - pcaStart, width * j + i, ip.getf(i, j) - fit.getFitAtX(c0, c1, x[k]));
 		    }
 		}
@@ -2282,19 +2557,10 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    double c0, c1;
 	    final double[] pcax = new double[pcaEnd - pcaStart];
 
-	    Jama.Matrix yMat = new Jama.Matrix(size, width * height);
-	    for (int k = 0; k < size; k++) {
-		updateProgress(k / (size * 4.0));
-		ip = stack.getProcessor(k + 1);
-		for (int j = 0; j < height; j++) {
-		    for (int i = 0; i < width; i++) {
-			yMat.set(k, width * j + i, ip.getf(i, j));
-		    }
-		}
-	    }
-	    final Jama.Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+	    final double[][] coeffs = fit.createFit(x, stack, fitStart, fitEnd);
+	    updateProgress(.125);
 
-	    yMat = new Jama.Matrix(pcaEnd - pcaStart, width * height);
+	    Jama.Matrix yMat = new Jama.Matrix(pcaEnd - pcaStart, width * height);
 	    for (int k = pcaStart; k < pcaEnd; k++) {
 		ip = stack.getProcessor(k + 1);
 		for (int j = 0; j < height; j++) {
@@ -2320,8 +2586,8 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		ip = stack.getProcessor(k + 1);
 		for (int j = 0; j < height; j++) {
 		    for (int i = 0; i < width; i++) {
-			c0 = coeffs.get(0, width * j + i);
-			c1 = coeffs.get(1, width * j + i);
+			c0 = coeffs[0][width * j + i];
+			c1 = coeffs[1][width * j + i];
 			yMat.set(k - pcaStart, width * j + i, ip.getf(i, j) - fit.getFitAtX(c0, c1, x[k]));
 		    }
 		}
@@ -2400,13 +2666,16 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	    if (roi == null) {
 		return null;
 	    }
-	    final ImageStack stack = img1.getStack();
 	    final double[] values = new double[size];
+	    final SpectrumCube spectra = cube;
+	    if (spectra != null && spectra.matches(img1) && spectra.mean(roi, values))
+		return values;
+	    final ImageStack stack = img1.getStack();
 	    final Calibration cal = img1.getCalibration();
 	    ImageProcessor ip;
 	    ImageStatistics stats;
 	    for (int i = 1; i <= size; i++) {
-		ip = stack.getProcessor(i);
+		ip = MappedVirtualStack.processorForReading(stack, i);
 		ip.setRoi(roi);
 		stats = ImageStatistics.getStatistics(ip, MEAN, cal);
 		values[i - 1] = stats.mean;
@@ -42,13 +42,31 @@ package edu.cornell.csi;
  * ***** END LICENSE BLOCK ***** */
 import com.mindprod.ledatastream.LEDataInputStream;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
@@ -58,6 +76,30 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 public class CSI_TIA_Reader implements PlugIn {
+    // Size of the header in front of each 1D data element (CalibrationOffset, CalibrationDelta,
+    // CalibrationElement, DataType and ArrayLength)
+    static final int SPECTRUM_HEADER = 26;
+    // Size of the header in front of each 2D data element (calibrations of both axes, DataType, ArraySizeX and
+    // ArraySizeY)
+    static final int IMAGE_HEADER = 50;
+    // Spectra that are stored back to back are fetched with reads of about this many bytes
+    private static final int BLOCK_SIZE = 1 << 22;
+    // Plane cache written next to a SER file for opening spectrum images as a virtual stack
+    static final String CACHE_SUFFIX = ".csicache";
+    private static final int CACHE_MAGIC = 0x43534943; // "CSIC"
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_HEADER = 64;
+    // Bytes of decoded spectra held in memory while the cache is written
+    private static final int CACHE_CHUNK = 1 << 25;
+    // Prefs key of the import option
+    private static final String PREF_VIRTUAL = "csi.tia.virtual";
+    // Milliseconds between two looks at a SER file in live mode
+    private static final long LIVE_PERIOD = 2000;
+    // Image property holding the number of spectra read so far in live mode
+    static final String LIVE_PROPERTY = "CSI live spectra";
+    // First SeriesVersion that stores OffsetArrayOffset and the data offsets as 64-bit values
+    static final int WIDE_OFFSETS_VERSION = 0x0220;
+
     ImagePlus img;
 
     @Override
@@ -66,9 +108,23 @@ public class CSI_TIA_Reader implements PlugIn {
 	if (null == path) {
 	    return;
 	}
-	if (!parse(path)) {
+	if (!parse(path, null, true) || img == null) {
 	    return;
 	}
+	img.show();
+	IJ.resetMinAndMax();
+    }
+
+    /*
+     * Reads the SER file at path without showing it or asking for import options. For a spectrum image only region
+     * is loaded, or all of it if region is null. Returns null if the file could not be read.
+     */
+    public ImagePlus load(final String path, final Hyperslab region) {
+	img = null;
+	if (!parse(path, region, false)) {
+	    return null;
+	}
+	return img;
     }
 
     private String getPath(final String arg) {
@@ -103,12 +159,12 @@ public class CSI_TIA_Reader implements PlugIn {
 	return new FileInputStream(path);
     }
 
-    private boolean parse(final String path) {
+    private boolean parse(final String path, Hyperslab region, final boolean interactive) {
 
 	int NUMBER_IMAGES; // number data sets
-	int OFFSET_ARRAY_OFFSET; // Offset to the data array offset
+	long OFFSET_ARRAY_OFFSET; // Offset to the data array offset
 	int NUMBER_DIMENSIONS; // !!!
-	int[] DATA_OFFSET; // field of data offset array values
+	long[] DATA_OFFSET; // field of data offset array values
 	int[] DIMENSION_SIZE; // !!!
 	double[] CALIBRATION_OFFSET; // !!!
 	double[] CALIBRATION_DELTA; // !!!
@@ -120,22 +176,20 @@ public class CSI_TIA_Reader implements PlugIn {
 	int DATA_TYPE_ID; // type of stored data 0x4120->1D; 0x4122->2D
 	ImagePlus imp = null;
 
+	SerFile ser = null;
 	// reading the header and the data offset array
 	try {
-	    final InputStream is = open(path);
-	    final LEDataInputStream data = new LEDataInputStream(is);
-	    if (data.readShort() != 0x4949) {
+	    ser = new SerFile(path);
+	    final SerHeader header = new SerHeader(ser);
+	    if (header.byteOrder != 0x4949) {
 		IJ.error("Doesn't seem to be a SER file");
+		ser.close();
 		return false; // ByteOrder 18761=0x4949H indicates little-endian byte Ordering
 	    }
-	    data.readShort(); // SeriesID
-	    data.readShort(); // SeriesVersion
-	    DATA_TYPE_ID = data.readInt(); // DataTypeID
-	    data.readInt(); // TagTypeID
-	    data.readInt(); // TotalNumberElements
-	    NUMBER_IMAGES = data.readInt(); // ValidNumberElements
-	    OFFSET_ARRAY_OFFSET = data.readInt(); // OffsetArrayOffset
-	    NUMBER_DIMENSIONS = data.readInt(); // NumberDimension
+	    DATA_TYPE_ID = header.dataTypeId; // DataTypeID
+	    NUMBER_IMAGES = header.validNumberElements; // ValidNumberElements
+	    OFFSET_ARRAY_OFFSET = header.offsetArrayOffset; // OffsetArrayOffset
+	    NUMBER_DIMENSIONS = header.numberDimensions; // NumberDimension
 	    DIMENSION_SIZE = new int[NUMBER_DIMENSIONS]; // !!!
 	    CALIBRATION_OFFSET = new double[NUMBER_DIMENSIONS]; // !!!
 	    CALIBRATION_DELTA = new double[NUMBER_DIMENSIONS]; // !!!
@@ -144,61 +198,52 @@ public class CSI_TIA_Reader implements PlugIn {
 	    DESCRIPTION = new char[NUMBER_DIMENSIONS][]; // !!!
 	    UNITS_LENGTH = new int[NUMBER_DIMENSIONS]; // !!!
 	    UNITS = new char[NUMBER_DIMENSIONS][]; // !!!
+	    // the dimension array fills the gap to the offset array
+	    final ByteBuffer data = ser.read(header.size(), (int) (OFFSET_ARRAY_OFFSET - header.size()));
 	    int count = 0;
-	    int location = 0;
 	    while (count < NUMBER_DIMENSIONS) {
-		DIMENSION_SIZE[count] = data.readInt(); // DimensionSize
-		CALIBRATION_OFFSET[count] = data.readDouble(); // CalibrationOffset
-		CALIBRATION_DELTA[count] = data.readDouble(); // CalibrationDelta
-		CALIBRATION_ELEMENT[count] = data.readInt(); // CalibrationElement
-		DESCRIPTION_LENGTH[count] = data.readInt(); // DescriptionLength
+		DIMENSION_SIZE[count] = data.getInt(); // DimensionSize
+		CALIBRATION_OFFSET[count] = data.getDouble(); // CalibrationOffset
+		CALIBRATION_DELTA[count] = data.getDouble(); // CalibrationDelta
+		CALIBRATION_ELEMENT[count] = data.getInt(); // CalibrationElement
+		DESCRIPTION_LENGTH[count] = data.getInt(); // DescriptionLength
 		DESCRIPTION[count] = new char[DESCRIPTION_LENGTH[count]];
 		for (int ccount = 0; ccount < DESCRIPTION_LENGTH[count]; ccount++) {
-		    DESCRIPTION[count][ccount] = (char) data.readByte(); // Description
+		    DESCRIPTION[count][ccount] = (char) data.get(); // Description
 		}
-		UNITS_LENGTH[count] = data.readInt(); // UnitsLength
+		UNITS_LENGTH[count] = data.getInt(); // UnitsLength
 		UNITS[count] = new char[UNITS_LENGTH[count]];
 		for (int ccount = 0; ccount < UNITS_LENGTH[count]; ccount++) {
-		    UNITS[count][ccount] = (char) data.readByte(); // Units
+		    UNITS[count][ccount] = (char) data.get(); // Units
 		}
-		location += 32 + DESCRIPTION_LENGTH[count] + UNITS_LENGTH[count];
 		count++;
 	    }
-	    DATA_OFFSET = new int[NUMBER_IMAGES]; // configure the size of the data offset array
-	    data.skipBytes(OFFSET_ARRAY_OFFSET - 30 - location); // Data offset array - header format
-	    count = 0;
-	    while (count < NUMBER_IMAGES) {
-		DATA_OFFSET[count] = data.readInt();
-		count++;
-	    }
-	    data.close();
+	    DATA_OFFSET = new long[NUMBER_IMAGES]; // configure the size of the data offset array
+	    header.readOffsets(ser, DATA_OFFSET, 0);
 	} catch (final Exception e) {
 	    IJ.error("Error opening file", e.getMessage());
 	    // IJ.error("Error opening file");
+	    closeQuietly(ser);
 	    return false;
 	}
 
 	// opening of the different data elements
 	try {
-	    if (NUMBER_DIMENSIONS <= 1) {
+	    if (NUMBER_DIMENSIONS <= 1 && DATA_TYPE_ID == 0x4120) {
+		// DataTypeID = 0x4120 indicates a spectrum, each one becomes a row of the line scan
+		if (NUMBER_IMAGES > 0) {
+		    imp = readLineScan(path.substring(path.lastIndexOf("/") + 1), ser, DATA_OFFSET);
+		}
+	    } else if (NUMBER_DIMENSIONS <= 1 && DATA_TYPE_ID == 0x4122) {
+		// DataTypeID = 0x4122 indicates an image, each one becomes a slice of the stack
+		if (NUMBER_IMAGES > 0) {
+		    imp = readImageSeries(path.substring(path.lastIndexOf("/") + 1), ser, DATA_OFFSET);
+		}
+	    } else if (NUMBER_DIMENSIONS <= 1) {
 		ImageStack ims = null;
 		int count = 0;
 		while (count < NUMBER_IMAGES) {
-		    if (DATA_TYPE_ID == 0x4122) {
-			if (ims == null) {
-			    final ImageProcessor ip = OpenImage(path, DATA_OFFSET[count]).getProcessor();
-			    ims = new ImageStack(ip.getWidth(), ip.getHeight());
-			    ims.addSlice("", ip);
-			} else {
-			    ims.addSlice("", OpenImage(path, DATA_OFFSET[count]).getProcessor());
-			}
-		    } // DataTypeID = 0x4122 indicates an image
-		    else if (DATA_TYPE_ID == 0x4120) {
-			if (imp == null)
-			    imp = new ImagePlus();
-			imp = OpenSpectra(path, DATA_OFFSET[count], imp.getProcessor());
-		    } // DataTypeID = 0x4120 indicates a spectrum
-		    else if (check_data_element(path, DATA_OFFSET[count])) // guessing of the DataType
+		    if (check_data_element(path, DATA_OFFSET[count])) // guessing of the DataType
 		    {
 			if (ims == null) {
 			    final ImageProcessor ip = OpenImage(path, DATA_OFFSET[count]).getProcessor();
@@ -219,33 +264,80 @@ public class CSI_TIA_Reader implements PlugIn {
 		}
 	    } else if (NUMBER_DIMENSIONS == 2) {
 
-		final LEDataInputStream data = new LEDataInputStream(open(path));
-		data.skipBytes(DATA_OFFSET[0]); // jumping to the data element
-		final double Z_OFFSET = data.readDouble(); // CalibrationOffset
-		final double Z_WIDTH = data.readDouble(); // CalibrationDelta
-		final int Z_ELEMENT = data.readInt(); // CalibrationElement
-		data.readShort(); // DataType
-		final int Z_DEPTH = data.readInt(); // ArrayLength
-		data.close();
-
-		final float[][][] spectra = new float[Z_DEPTH][DIMENSION_SIZE[0]][DIMENSION_SIZE[1]];
-		for (int j = 0; j < DIMENSION_SIZE[1]; j++)
-		    for (int i = 0; i < DIMENSION_SIZE[0]; i++)
-			if (i * DIMENSION_SIZE[1] + j < NUMBER_IMAGES) {
-			    IJ.showProgress(
-				    1.0 * (j * DIMENSION_SIZE[0] + i + 1) / (DIMENSION_SIZE[0] * DIMENSION_SIZE[1]));
-			    OpenSpectra(path, DATA_OFFSET[j * DIMENSION_SIZE[0] + i], spectra, i, j);
-			}
-		final ImageStack ims = new ImageStack(DIMENSION_SIZE[0], DIMENSION_SIZE[1]);
-		for (int k = 0; k < Z_DEPTH; k++)
-		    ims.addSlice((Z_OFFSET - (Z_WIDTH * Z_ELEMENT) + (k * Z_WIDTH)) + " ev",
-			    new FloatProcessor(spectra[k]));
+		final ByteBuffer data = ser.read(DATA_OFFSET[0], SPECTRUM_HEADER); // header of the first spectrum
+		final double Z_OFFSET = data.getDouble(); // CalibrationOffset
+		final double Z_WIDTH = data.getDouble(); // CalibrationDelta
+		final int Z_ELEMENT = data.getInt(); // CalibrationElement
+		final short Z_TYPE = data.getShort(); // DataType
+		final int Z_DEPTH = data.getInt(); // ArrayLength
+
+		final SpectrumImage si = new SpectrumImage(ser, DATA_OFFSET, Z_TYPE, Z_DEPTH, DIMENSION_SIZE[0]);
+		final Calibration zCal = new Calibration();
+		zCal.pixelDepth = Z_WIDTH;
+		zCal.zOrigin = Z_ELEMENT - Z_OFFSET / Z_WIDTH;
+		zCal.setZUnit("eV");
+
+		boolean virtual = false;
+		boolean live = false;
+		if (interactive) {
+		    final GenericDialog gd = new GenericDialog("SER Import Options");
+		    gd.addCheckbox("Virtual stack (plane cache)", Prefs.get(PREF_VIRTUAL, false));
+		    gd.addMessage("A virtual stack is read from a cache of energy planes,\n"
+			    + "which is written next to the SER file on first use.\n"
+			    + "It always holds the whole spectrum image; the region below\n"
+			    + "applies when the data is loaded into memory.");
+		    gd.addCheckbox("Live update (file is still being acquired)", false);
+		    Hyperslab.addFields(gd, DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH, zCal);
+		    gd.showDialog();
+		    if (gd.wasCanceled()) {
+			return false;
+		    }
+		    virtual = gd.getNextBoolean();
+		    Prefs.set(PREF_VIRTUAL, virtual);
+		    live = gd.getNextBoolean() && !virtual;
+		    region = Hyperslab.readFields(gd, DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH, zCal);
+		} else if (region != null) {
+		    region = region.clip(DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH);
+		} else {
+		    region = Hyperslab.all(DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH);
+		}
+		if (virtual) {
+		    region = Hyperslab.all(DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH);
+		} else if (region == null) {
+		    IJ.error("TIA_Reader", "The selected region lies outside of the spectrum image.");
+		    return false;
+		}
+
+		// a binned channel is labelled with the energy at the centre of the channels it sums
+		final String[] labels = new String[region.binnedDepth()];
+		for (int k = 0; k < labels.length; k++)
+		    labels[k] = (Z_OFFSET - (Z_WIDTH * Z_ELEMENT)
+			    + ((region.z + k * region.binZ + (region.binZ - 1) / 2.0) * Z_WIDTH)) + " ev";
+
+		final ImageStack ims;
+		float[][] planes = null;
+		if (virtual) {
+		    final File cache = cacheFile(path);
+		    if (!isCacheValid(cache, ser, DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH)) {
+			IJ.showStatus("Writing plane cache " + cache.getName());
+			writeCache(si, DIMENSION_SIZE[1], cache);
+		    }
+		    ims = new MappedVirtualStack(cache, CACHE_HEADER, DIMENSION_SIZE[0], DIMENSION_SIZE[1], labels);
+		} else {
+		    // the stack adopts the decoded planes as they are, so the data is held in memory only once
+		    final int count = si.count(region);
+		    planes = new float[labels.length][region.binnedWidth() * region.binnedHeight()];
+		    readSpectra(si, region, planes, 0, 0, count, new Progress(count));
+		    ims = new ImageStack(region.binnedWidth(), region.binnedHeight());
+		    for (int k = 0; k < labels.length; k++)
+			ims.addSlice(labels[k], planes[k]);
+		}
 
 		imp = new ImagePlus(path.substring(path.lastIndexOf("/") + 1), ims);
 
 		final Calibration cal = imp.getCalibration();
-		cal.pixelDepth = Z_WIDTH;
-		cal.zOrigin = Z_ELEMENT - Z_OFFSET / Z_WIDTH;
+		cal.pixelDepth = zCal.pixelDepth;
+		cal.zOrigin = zCal.zOrigin;
 		if (CALIBRATION_DELTA[0] > 1) {
 		    imp.getCalibration().pixelWidth = CALIBRATION_DELTA[0];
 		    imp.getCalibration().xOrigin = CALIBRATION_OFFSET[0];
@@ -280,23 +372,27 @@ public class CSI_TIA_Reader implements PlugIn {
 		    imp.getCalibration().yOrigin = 1E9 * CALIBRATION_OFFSET[1];
 		    imp.getCalibration().setYUnit("nano" + new String(UNITS[1]));
 		}
+		region.calibrate(cal);
+
+		if (live && DATA_OFFSET.length < DIMENSION_SIZE[0] * DIMENSION_SIZE[1]) {
+		    new LiveUpdate(path, imp, region, planes, DATA_OFFSET, Z_TYPE, Z_DEPTH, DIMENSION_SIZE[0])
+			    .start();
+		}
 	    } else
 		IJ.error("TIA_Reader currently doesn't support reading " + NUMBER_DIMENSIONS + " dimensional data.");
 	} catch (final Exception e) {
 	    IJ.error("Error opening Data series", e.toString());
 	    // IJ.error("Error opening Data series");
 	    return false;
+	} finally {
+	    closeQuietly(ser);
 	}
 
-	if (imp != null) {
-	    imp.show();
-	    img = imp;
-	    IJ.resetMinAndMax();
-	}
+	img = imp;
 	return true;
     }
 
-    private boolean check_data_element(final String path, final int byteoffset) throws Exception {
+    private boolean check_data_element(final String path, final long byteoffset) throws Exception {
 
 	// variables
 	double PIXEL_WIDTH; // CalibrationDeltaX
@@ -306,7 +402,7 @@ public class CSI_TIA_Reader implements PlugIn {
 	// reading the header of the data elements
 	final InputStream is = open(path);
 	final LEDataInputStream data = new LEDataInputStream(is);
-	data.skipBytes(byteoffset); // jumping to the data element field
+	skip(data, byteoffset); // jumping to the data element field
 	data.readDouble(); // CalibrationOffsetX
 	PIXEL_WIDTH = data.readDouble(); // CalibrationDeltaX
 	data.readInt(); // CalibrationElementX
@@ -325,7 +421,7 @@ public class CSI_TIA_Reader implements PlugIn {
 	}
     }
 
-    private ImagePlus OpenImage(final String path, final int byteoffset) throws Exception {
+    private ImagePlus OpenImage(final String path, final long byteoffset) throws Exception {
 
 	// variables
 	double PIXEL_WIDTH; // CalibrationDeltaX
@@ -337,7 +433,7 @@ public class CSI_TIA_Reader implements PlugIn {
 	// reading calibration values
 	final InputStream is = open(path);
 	final LEDataInputStream data = new LEDataInputStream(is);
-	data.skipBytes(byteoffset); // jumping to the 2D-data element field
+	skip(data, byteoffset); // jumping to the 2D-data element field
 	data.readDouble(); // CalibrationOffsetX
 	PIXEL_WIDTH = data.readDouble(); // CalibrationDeltaX
 	data.readInt(); // CalibrationElementX
@@ -409,7 +505,7 @@ public class CSI_TIA_Reader implements PlugIn {
 	    fi.fileType = FileInfo.GRAY64_FLOAT;
 	    break;
 	}
-	fi.offset = byteoffset + 50;
+	fi.longOffset = byteoffset + IMAGE_HEADER;
 	fi.whiteIsZero = false;
 	final FileOpener fo = new FileOpener(fi);
 	final ImagePlus imp = fo.open(false);
@@ -422,7 +518,7 @@ public class CSI_TIA_Reader implements PlugIn {
 
     }
 
-    private ImagePlus OpenSpectra(final String path, final int byteoffset, final ImageProcessor ip1) throws Exception {
+    private ImagePlus OpenSpectra(final String path, final long byteoffset, final ImageProcessor ip1) throws Exception {
 	// variables
 	double PIXEL_WIDTH; // CalibrationDelta
 	double CALIBRATION_OFFSET; // CalibrationOffset
@@ -435,7 +531,7 @@ public class CSI_TIA_Reader implements PlugIn {
 
 	// reading the calibration data
 	final LEDataInputStream data = new LEDataInputStream(open(path));
-	data.skipBytes(byteoffset); // jumping to the data element
+	skip(data, byteoffset); // jumping to the data element
 
 	CALIBRATION_OFFSET = data.readDouble(); // CalibrationOffset
 	PIXEL_WIDTH = data.readDouble(); // CalibrationDelta
@@ -453,41 +549,37 @@ public class CSI_TIA_Reader implements PlugIn {
 	    ip.insert(ipOld, 0, 0);
 	}
 
-	// opening of the spectra
-	int count = 0;
-	while (count < IMAGE_WIDTH) {
+	// opening of the spectra, the whole spectrum is read and decoded at once
+	final float[] spectrum = new float[IMAGE_WIDTH];
+	switch (DATA_TYPE) {
+	case 2:
+	    data.readUnsignedShortsAsFloat(spectrum, 0, IMAGE_WIDTH);
+	    break;
+	case 3:
+	    data.readUnsignedIntsAsFloat(spectrum, 0, IMAGE_WIDTH);
+	    break;
+	case 5:
+	    data.readShortsAsFloat(spectrum, 0, IMAGE_WIDTH);
+	    break;
+	case 6:
+	    data.readIntsAsFloat(spectrum, 0, IMAGE_WIDTH);
+	    break;
+	case 7:
+	    data.readFloats(spectrum, 0, IMAGE_WIDTH);
+	    break;
+	case 8:
+	    data.readDoublesAsFloat(spectrum, 0, IMAGE_WIDTH);
+	    break;
+	default:
+	    data.close();
+	    return null;
+	}
+	data.close();
+	for (int count = 0; count < IMAGE_WIDTH; count++) {
 	    // x[count] = 0.001f * ((float) CALIBRATION_OFFSET - ((float) PIXEL_WIDTH * (float) CALIBRATION_ELEMENT) +
 	    // ((float) count * (float) PIXEL_WIDTH)); //setting in x in keV
-	    switch (DATA_TYPE) {
-	    case 1:
-		return null;
-	    case 2:
-		ip.setf(count, IMAGE_HEIGHT - 1, data.readShort());
-		break;
-	    case 3:
-		ip.setf(count, IMAGE_HEIGHT - 1, data.readInt());
-		break;
-	    case 4:
-		return null;
-	    case 5:
-		ip.setf(count, IMAGE_HEIGHT - 1, data.readShort());
-		break;
-	    case 6:
-		ip.setf(count, IMAGE_HEIGHT - 1, data.readInt());
-		break;
-	    case 7:
-		ip.setf(count, IMAGE_HEIGHT - 1, data.readFloat());
-		break;
-	    case 8:
-		return null;
-	    case 9:
-		return null;
-	    case 10:
-		return null;
-	    }
-	    count++;
+	    ip.setf(count, IMAGE_HEIGHT - 1, spectrum[count]);
 	}
-	data.close();
 	imp = new ImagePlus(path.substring(path.lastIndexOf("/") + 1), ip);
 	final Calibration cal = imp.getCalibration();
 	cal.pixelDepth = PIXEL_WIDTH;
@@ -498,74 +590,749 @@ public class CSI_TIA_Reader implements PlugIn {
 
     }
 
-    private void OpenSpectra(final String path, final int byteoffset, final float[][][] spectra, final int i,
-	    final int j) throws Exception {
-	short DATA_TYPE; // DataType
-	int DATA_DEPTH; // ArrayLength
-	@SuppressWarnings("unused")
-	final int IMAGE_WIDTH = spectra[0].length;
-	@SuppressWarnings("unused")
-	final int IMAGE_HEIGHT = spectra[0][0].length;
+    /*
+     * Reads a series of spectra as a line scan with one row per spectrum. The header of the first spectrum fixes the
+     * size of the image, so the pixels are allocated once and every row is decoded in place in a single pass over the
+     * file.
+     */
+    private static ImagePlus readLineScan(final String title, final SerFile ser, final long[] offsets)
+	    throws IOException {
+	final ByteBuffer header = ser.read(offsets[0], SPECTRUM_HEADER);
+	final double offset = header.getDouble(); // CalibrationOffset
+	final double delta = header.getDouble(); // CalibrationDelta
+	final int element = header.getInt(); // CalibrationElement
+	final short dataType = header.getShort(); // DataType
+	final int length = header.getInt(); // ArrayLength
 
-	// reading the calibration data
-	final LEDataInputStream data = new LEDataInputStream(open(path));
-	data.skipBytes(byteoffset); // jumping to the data element
-
-	@SuppressWarnings("unused")
-	final double CALIBRATION_OFFSET = data.readDouble(); // CalibrationOffset
-	@SuppressWarnings("unused")
-	final double PIXEL_WIDTH = data.readDouble(); // CalibrationDelta
-	@SuppressWarnings("unused")
-	final double CALIBRATION_ELEMENT = data.readInt(); // CalibrationElement
-	DATA_TYPE = data.readShort(); // DataType
-	DATA_DEPTH = data.readInt(); // ArrayLength
-
-	// opening of the spectra
-	int count = 0;
-	while (count < DATA_DEPTH) {
-	    // IJ.write("Creating new slice at level "+count);
-	    // ims.addSlice((CALIBRATION_OFFSET - (PIXEL_WIDTH * CALIBRATION_ELEMENT) + (count * PIXEL_WIDTH))+" ev",
-	    // new FloatProcessor(IMAGE_WIDTH, IMAGE_HEIGHT));
-	    // x[count] = 0.001f * ((float) CALIBRATION_OFFSET - ((float) PIXEL_WIDTH * (float) CALIBRATION_ELEMENT) +
-	    // ((float) count * (float) PIXEL_WIDTH)); //setting in x in keV
-	    switch (DATA_TYPE) {
-	    case 1:
-		return;
-	    case 2:
-		spectra[count][i][j] = data.readShort();
-		break;
-	    case 3:
-		spectra[count][i][j] = data.readInt();
-		break;
-	    case 4:
-		return;
-	    case 5:
-		spectra[count][i][j] = data.readShort();
-		break;
-	    case 6:
-		spectra[count][i][j] = data.readInt();
+	final int elementSize = SPECTRUM_HEADER + length * typeSize(dataType);
+	final int perBlock = Math.max(1, Math.min(offsets.length, BLOCK_SIZE / elementSize));
+	final ByteBuffer block = ByteBuffer.allocateDirect(perBlock * elementSize).order(ByteOrder.LITTLE_ENDIAN);
+	final float[] pixels = new float[offsets.length * length];
+	final float[] spectrum = new float[length];
+	int n = 0;
+	while (n < offsets.length) {
+	    int run = 1;
+	    while (run < perBlock && n + run < offsets.length
+		    && offsets[n + run] == offsets[n] + (long) run * elementSize) {
+		run++;
+	    }
+	    block.clear();
+	    block.limit(run * elementSize);
+	    ser.read(block, offsets[n]);
+	    for (int r = 0; r < run; r++) {
+		block.position(r * elementSize + SPECTRUM_HEADER - 6);
+		if (block.getShort() != dataType || block.getInt() != length) {
+		    throw new IOException("Spectrum " + (n + r) + " differs in type or length from the first one");
+		}
+		decode(block, dataType, spectrum);
+		System.arraycopy(spectrum, 0, pixels, (n + r) * length, length);
+	    }
+	    n += run;
+	    IJ.showProgress(n, offsets.length);
+	}
+
+	final ImagePlus imp = new ImagePlus(title, new FloatProcessor(length, offsets.length, pixels));
+	final Calibration cal = imp.getCalibration();
+	cal.pixelDepth = delta;
+	cal.zOrigin = element - offset / delta;
+	return imp;
+    }
+
+    /*
+     * Reads a series of images as a stack with one slice per image. Every element is fetched with a single read that
+     * covers its header and its pixels, and the rows are stored in reverse order while they are decoded, because TIA
+     * writes the bottom row first. 8 and 16 bit unsigned images keep their type, all others become 32-bit. The pixel
+     * size is taken from the first image, as OpenImage() does for a single one.
+     */
+    private static ImagePlus readImageSeries(final String title, final SerFile ser, final long[] offsets)
+	    throws IOException {
+	final ByteBuffer header = ser.read(offsets[0], IMAGE_HEADER);
+	header.getDouble(); // CalibrationOffsetX
+	final double pixelWidth = header.getDouble(); // CalibrationDeltaX
+	header.getInt(); // CalibrationElementX
+	header.getDouble(); // CalibrationOffsetY
+	final double pixelHeight = header.getDouble(); // CalibrationDeltaY
+	header.getInt(); // CalibrationElementY
+	final short dataType = header.getShort(); // DataType
+	final int width = header.getInt(); // ArraySizeX
+	final int height = header.getInt(); // ArraySizeY
+
+	final int rowSize = width * typeSize(dataType);
+	final ByteBuffer element = ByteBuffer.allocateDirect(IMAGE_HEADER + height * rowSize)
+		.order(ByteOrder.LITTLE_ENDIAN);
+	final float[] row = new float[width];
+	final ImageStack stack = new ImageStack(width, height);
+	for (int n = 0; n < offsets.length; n++) {
+	    element.clear();
+	    ser.read(element, offsets[n]);
+	    element.position(IMAGE_HEADER - 10);
+	    if (element.getShort() != dataType || element.getInt() != width || element.getInt() != height) {
+		throw new IOException("Image " + n + " differs in type or size from the first one");
+	    }
+	    final Object pixels;
+	    switch (dataType) {
+	    case 1: // unsigned 8 bit integer
+	    case 4: // signed 8 bit integer, shown as unsigned like before
+		final byte[] bytes = new byte[width * height];
+		for (int r = 0; r < height; r++) {
+		    element.position(IMAGE_HEADER + r * rowSize);
+		    element.get(bytes, (height - 1 - r) * width, width);
+		}
+		pixels = bytes;
 		break;
-	    case 7:
-		spectra[count][i][j] = data.readFloat();
+	    case 2: // unsigned 16 bit integer
+		final short[] shorts = new short[width * height];
+		for (int r = 0; r < height; r++) {
+		    element.position(IMAGE_HEADER + r * rowSize);
+		    element.asShortBuffer().get(shorts, (height - 1 - r) * width, width);
+		}
+		pixels = shorts;
 		break;
-	    case 8:
-		return;
-	    case 9:
-		return;
-	    case 10:
+	    default:
+		final float[] floats = new float[width * height];
+		for (int r = 0; r < height; r++) {
+		    element.position(IMAGE_HEADER + r * rowSize);
+		    decode(element, dataType, row);
+		    System.arraycopy(row, 0, floats, (height - 1 - r) * width, width);
+		}
+		pixels = floats;
+	    }
+	    stack.addSlice("", pixels);
+	    IJ.showProgress(n + 1, offsets.length);
+	}
+	final ImagePlus imp = new ImagePlus(title, stack);
+	final Calibration cal = imp.getCalibration();
+	if ((pixelWidth * width) < 1E-5) {
+	    cal.pixelWidth = pixelWidth / 1E-9;
+	    cal.pixelHeight = pixelHeight / 1E-9;
+	    cal.setUnit("nm");
+	} else if ((pixelWidth * width) < 1E-2) {
+	    cal.pixelWidth = pixelWidth / 1E-6;
+	    cal.pixelHeight = pixelHeight / 1E-6;
+	    cal.setUnit("microns");
+	} else if ((pixelWidth * width) < 1E1) {
+	    cal.pixelWidth = pixelWidth / 1E-3;
+	    cal.pixelHeight = pixelHeight / 1E-3;
+	    cal.setUnit("mm");
+	} else {
+	    cal.pixelWidth = pixelWidth;
+	    cal.pixelHeight = pixelHeight;
+	    cal.setUnit("m");
+	}
+	return imp;
+    }
+
+    /*
+     * The spectra of a 2D spectrum image: where they are in the file, their data type and number of channels, and the
+     * width of the scan. Spectrum n belongs to the pixel (n % width, n / width).
+     */
+    static final class SpectrumImage {
+	final SerFile ser;
+	final long[] offsets;
+	final int dataType;
+	final int length;
+	final int width;
+
+	SpectrumImage(final SerFile ser, final long[] offsets, final int dataType, final int length,
+		final int width) {
+	    this.ser = ser;
+	    this.offsets = offsets;
+	    this.dataType = dataType;
+	    this.length = length;
+	    this.width = width;
+	}
+
+	/*
+	 * Returns the number of pixels of region that have a spectrum in the file. A scan that was stopped early
+	 * leaves the last pixels without one.
+	 */
+	int count(final Hyperslab region) {
+	    int count = region.width * region.height;
+	    while (count > 0 && index(region, count - 1) >= offsets.length) {
+		count--;
+	    }
+	    return count;
+	}
+
+	/*
+	 * Returns the index of the spectrum of pixel n of region, counting row by row.
+	 */
+	int index(final Hyperslab region, final int n) {
+	    return (region.y + n / region.width) * width + region.x + n % region.width;
+	}
+    }
+
+    /*
+     * Adds the pixels first to last - 1 of region to the pixel arrays planes[channel - region.z], pixel n going to
+     * index n - base of each plane. Reading all pixels with base = 0 therefore fills complete image planes. A binned
+     * region sums its bins into the planes of the binned size. When ImageJ is allowed more than one thread, the pixels
+     * are split into ranges that are decoded in parallel, each range writing straight into its own part of the planes.
+     */
+    private static void readSpectra(final SpectrumImage si, final Hyperslab region, final float[][] planes,
+	    final int base, final int first, final int last, final Progress progress) throws IOException {
+	final int threads = Prefs.getThreads();
+	if (threads < 2) {
+	    decodeSpectra(si, region, planes, base, first, last, progress);
+	    return;
+	}
+	final ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    pool.invoke(new DecodeTask(si, region, planes, base, first, last, progress));
+	} catch (final DecodeException e) {
+	    throw e.getCause();
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /*
+     * Adds the pixels first to last - 1 of region to the planes, counting the pixel indices from base. Spectra that
+     * are stored back to back in the file are fetched together with one large read, so the file is streamed once and
+     * the load time scales with the file size rather than the pixel count. If only a narrow range of channels is
+     * wanted, just those bytes of each spectrum are read.
+     */
+    private static void decodeSpectra(final SpectrumImage si, final Hyperslab region, final float[][] planes,
+	    final int base, final int first, final int last, final Progress progress) throws IOException {
+	final int size = typeSize(si.dataType);
+	final int elementSize = SPECTRUM_HEADER + si.length * size;
+	final int window = SPECTRUM_HEADER + region.z * size; // start of the wanted channels in a spectrum
+	// reading whole spectra costs little more than reading every window on its own unless the windows are narrow
+	final boolean whole = 2 * region.depth * size >= elementSize;
+	final int readSize = whole ? elementSize : region.depth * size;
+	final int perBlock = whole ? Math.max(1, Math.min(last - first, BLOCK_SIZE / elementSize)) : 1;
+	final ByteBuffer block = ByteBuffer.allocateDirect(perBlock * readSize).order(ByteOrder.LITTLE_ENDIAN);
+	final float[] spectrum = new float[region.depth];
+	final int width = region.binnedWidth();
+	final int height = region.binnedHeight();
+	final int channels = region.binnedDepth() * region.binZ;
+	final int origin = (base / region.width / region.binY) * width + (base % region.width) / region.binX;
+	int n = first;
+	while (n < last) {
+	    final long offset = si.offsets[si.index(region, n)];
+	    // extend the run for as long as the next spectrum directly follows the previous one
+	    int run = 1;
+	    while (run < perBlock && n + run < last
+		    && si.offsets[si.index(region, n + run)] == offset + (long) run * elementSize) {
+		run++;
+	    }
+	    block.clear();
+	    block.limit(run * readSize);
+	    si.ser.read(block, whole ? offset : offset + window);
+	    for (int r = 0; r < run; r++) {
+		if (whole) {
+		    block.position(r * elementSize + SPECTRUM_HEADER - 6);
+		    if (block.getShort() != si.dataType || block.getInt() != si.length) {
+			throw new IOException("Spectrum " + si.index(region, n + r)
+				+ " differs in type or length from the first one");
+		    }
+		    block.position(r * elementSize + window);
+		} else {
+		    block.position(0);
+		}
+		// the pixel of the planes that sums this spectrum, if it is not in the remainder of the binning
+		final int i = (n + r) % region.width / region.binX;
+		final int j = (n + r) / region.width / region.binY;
+		if (i >= width || j >= height) {
+		    continue;
+		}
+		decode(block, si.dataType, spectrum);
+		final int index = j * width + i - origin;
+		for (int k = 0; k < channels; k++) {
+		    planes[k / region.binZ][index] += spectrum[k];
+		}
+	    }
+	    n += run;
+	    progress.add(run);
+	}
+    }
+
+    /*
+     * Splits a range of pixels in halves until a range is small enough to be read with a few block reads. Ranges are
+     * only split between rows of bins, so that no two tasks add to the same pixel.
+     */
+    private static class DecodeTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final SpectrumImage si;
+	private final Hyperslab region;
+	private final float[][] planes;
+	private final int base, first, last;
+	private final Progress progress;
+
+	DecodeTask(final SpectrumImage si, final Hyperslab region, final float[][] planes, final int base,
+		final int first, final int last, final Progress progress) {
+	    this.si = si;
+	    this.region = region;
+	    this.planes = planes;
+	    this.base = base;
+	    this.first = first;
+	    this.last = last;
+	    this.progress = progress;
+	}
+
+	@Override
+	protected void compute() {
+	    final long bytes = (long) (last - first) * region.depth * 4;
+	    final int rows = region.width * region.binY;
+	    final int middle = ((first + last) >>> 1) / rows * rows;
+	    if (bytes > 2L * BLOCK_SIZE && middle > first) {
+		invokeAll(new DecodeTask(si, region, planes, base, first, middle, progress),
+			new DecodeTask(si, region, planes, base, middle, last, progress));
 		return;
 	    }
-	    count++;
+	    try {
+		decodeSpectra(si, region, planes, base, first, last, progress);
+	    } catch (final IOException e) {
+		throw new DecodeException(e);
+	    }
 	}
-	data.close();
-	// imp = new ImagePlus("TEST", ims);
-	// Calibration cal = imp.getCalibration();
-	// cal.pixelDepth = PIXEL_WIDTH;
-	// cal.zOrigin = CALIBRATION_ELEMENT - CALIBRATION_OFFSET/PIXEL_WIDTH;
-	// return imp;
-	// IJ.log ("Calibration-Delta-x: " + (PIXEL_WIDTH) + " / Length of data field: " + (IMAGE_WIDTH));
-	// plotting of the data
+    }
+
+    /*
+     * Carries an IOException out of a DecodeTask.
+     */
+    private static class DecodeException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	DecodeException(final IOException cause) {
+	    super(cause);
+	}
+
+	@Override
+	public synchronized IOException getCause() {
+	    return (IOException) super.getCause();
+	}
+    }
+
+    /*
+     * Follows a SER file that TIA is still writing. Every LIVE_PERIOD milliseconds the header is read again, and when
+     * ValidNumberElements has grown, only the new entries of the offset array are read and only the new spectra are
+     * decoded into the planes of the open image. The image is then updated with LIVE_PROPERTY set to the number of
+     * spectra, which lets an open Spectrum Analyzer refresh its profile. Following stops when every pixel has its
+     * spectrum or the image is closed.
+     */
+    static final class LiveUpdate extends TimerTask implements ImageListener {
+	private final String path;
+	private final ImagePlus imp;
+	private final Hyperslab region;
+	private final float[][] planes;
+	private final int dataType, length, width;
+	private final Timer timer = new Timer("SER live update", true);
+	private long[] offsets;
 
+	LiveUpdate(final String path, final ImagePlus imp, final Hyperslab region, final float[][] planes,
+		final long[] offsets, final int dataType, final int length, final int width) {
+	    this.path = path;
+	    this.imp = imp;
+	    this.region = region;
+	    this.planes = planes;
+	    this.offsets = offsets;
+	    this.dataType = dataType;
+	    this.length = length;
+	    this.width = width;
+	}
+
+	void start() {
+	    ImagePlus.addImageListener(this);
+	    timer.schedule(this, LIVE_PERIOD, LIVE_PERIOD);
+	}
+
+	void stop() {
+	    cancel();
+	    timer.cancel();
+	    ImagePlus.removeImageListener(this);
+	}
+
+	@Override
+	public void run() {
+	    final SerFile ser;
+	    try {
+		ser = new SerFile(path);
+	    } catch (final IOException e) {
+		return; // TIA may hold the file right now, so try again next time
+	    }
+	    try {
+		final SerHeader header = new SerHeader(ser);
+		final int valid = header.validNumberElements;
+		if (valid <= offsets.length) {
+		    return;
+		}
+		final long[] grown = Arrays.copyOf(offsets, valid);
+		header.readOffsets(ser, grown, offsets.length);
+		if (ser.size() < grown[valid - 1] + SPECTRUM_HEADER + (long) length * typeSize(dataType)) {
+		    return; // the last spectrum is not completely written yet
+		}
+		final int first = new SpectrumImage(ser, offsets, dataType, length, width).count(region);
+		final SpectrumImage si = new SpectrumImage(ser, grown, dataType, length, width);
+		final int last = si.count(region);
+		readSpectra(si, region, planes, 0, first, last, new Progress(last - first));
+		offsets = grown;
+		imp.setProperty(LIVE_PROPERTY, Integer.valueOf(valid));
+		imp.updateAndDraw();
+		IJ.showStatus(imp.getTitle() + ": " + valid + " spectra");
+		if (last == region.width * region.height) {
+		    stop();
+		}
+	    } catch (final IOException e) {
+		// spectra decoded so far have been added already, so they can not simply be read again
+		stop();
+		IJ.error("TIA_Reader", "Live update of " + imp.getTitle() + " stopped:\n" + e.getMessage());
+	    } finally {
+		closeQuietly(ser);
+	    }
+	}
+
+	@Override
+	public void imageClosed(final ImagePlus image) {
+	    if (image == imp) {
+		stop();
+	    }
+	}
+
+	@Override
+	public void imageOpened(final ImagePlus image) {
+	    // not used
+	}
+
+	@Override
+	public void imageUpdated(final ImagePlus image) {
+	    // not used
+	}
+    }
+
+    /*
+     * Counts decoded spectra for the ImageJ progress bar, also when they are decoded on several threads.
+     */
+    private static final class Progress {
+	private final AtomicInteger done = new AtomicInteger();
+	private final int total;
+
+	Progress(final int total) {
+	    this.total = total;
+	}
+
+	void add(final int count) {
+	    IJ.showProgress(done.addAndGet(count), total);
+	}
+    }
+
+    /*
+     * Writes the spectra of a 2D spectrum image to a plane cache: a CACHE_HEADER byte header followed by the energy
+     * planes as 32-bit little-endian floats. The spectra are decoded in bands of pixels that fit into CACHE_CHUNK
+     * bytes and every band is scattered to its place in each plane, so the file is transcoded in one streaming pass
+     * with bounded memory. The cache is written under a temporary name and renamed when it is complete; if the
+     * transcode fails, the partly written file is deleted.
+     */
+    private static void writeCache(final SpectrumImage si, final int height, final File cache) throws IOException {
+	final int width = si.width;
+	final int depth = si.length;
+	final int pixels = width * height;
+	final Hyperslab all = Hyperslab.all(width, height, depth);
+	final int count = si.count(all);
+	final int chunk = Math.max(1, Math.min(pixels, CACHE_CHUNK / (4 * depth)));
+	final File part = new File(cache.getPath() + ".part");
+	final RandomAccessFile raf = new RandomAccessFile(part, "rw");
+	boolean complete = false;
+	try {
+	    try {
+		final FileChannel channel = raf.getChannel();
+		raf.setLength(CACHE_HEADER + 4L * pixels * depth);
+		final float[][] planes = new float[depth][chunk];
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(4 * chunk).order(ByteOrder.LITTLE_ENDIAN);
+		final Progress progress = new Progress(count);
+		for (int first = 0; first < count; first += chunk) {
+		    final int last = Math.min(count, first + chunk);
+		    for (int k = 0; k < depth; k++) {
+			Arrays.fill(planes[k], 0);
+		    }
+		    readSpectra(si, all, planes, first, first, last, progress);
+		    for (int k = 0; k < depth; k++) {
+			buffer.clear();
+			buffer.asFloatBuffer().put(planes[k], 0, last - first);
+			buffer.limit(4 * (last - first));
+			write(channel, buffer, CACHE_HEADER + 4 * ((long) k * pixels + first));
+		    }
+		}
+		// the header goes in last, so an interrupted transcode never looks like a valid cache
+		final ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(CACHE_MAGIC).putInt(CACHE_VERSION);
+		header.putLong(si.ser.size()).putLong(si.ser.lastModified());
+		header.putInt(width).putInt(height).putInt(depth);
+		header.clear();
+		write(channel, header, 0);
+	    } finally {
+		raf.close();
+	    }
+	    Files.move(part.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	    complete = true;
+	} finally {
+	    // a partly written cache is of no use
+	    if (!complete) {
+		part.delete();
+	    }
+	}
+    }
+
+    /*
+     * Returns true if the cache holds the planes of the given SER file in its current state.
+     */
+    private static boolean isCacheValid(final File cache, final SerFile ser, final int width, final int height,
+	    final int depth) {
+	if (!cache.isFile() || cache.length() != CACHE_HEADER + 4L * width * height * depth) {
+	    return false;
+	}
+	try {
+	    final RandomAccessFile raf = new RandomAccessFile(cache, "r");
+	    try {
+		final ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		raf.readFully(header.array());
+		return header.getInt() == CACHE_MAGIC && header.getInt() == CACHE_VERSION
+			&& header.getLong() == ser.size() && header.getLong() == ser.lastModified()
+			&& header.getInt() == width && header.getInt() == height && header.getInt() == depth;
+	    } finally {
+		raf.close();
+	    }
+	} catch (final IOException e) {
+	    return false;
+	}
+    }
+
+    /*
+     * Returns the plane cache of a SER file: next to the file if that directory is writable, in the ImageJ temp
+     * directory otherwise.
+     */
+    private static File cacheFile(final String path) {
+	final String name = path.substring(path.lastIndexOf("/") + 1) + CACHE_SUFFIX;
+	if (0 != path.indexOf("http://")) {
+	    final File sidecar = new File(path + CACHE_SUFFIX);
+	    final File dir = sidecar.getAbsoluteFile().getParentFile();
+	    if (sidecar.isFile() || dir != null && dir.canWrite()) {
+		return sidecar;
+	    }
+	}
+	return new File(IJ.getDirectory("temp"), name);
+    }
+
+    private static void write(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+	while (buffer.hasRemaining()) {
+	    position += channel.write(buffer, position);
+	}
+    }
+
+    /*
+     * Returns the number of bytes used by one value of the given SER data type.
+     */
+    static int typeSize(final int dataType) throws IOException {
+	switch (dataType) {
+	case 1: // unsigned 8 bit integer
+	case 4: // signed 8 bit integer
+	    return 1;
+	case 2: // unsigned 16 bit integer
+	case 5: // signed 16 bit integer
+	    return 2;
+	case 3: // unsigned 32 bit integer
+	case 6: // signed 32 bit integer
+	case 7: // 32 bit float
+	    return 4;
+	case 8: // 64 bit float
+	    return 8;
+	default: // 9 and 10 are complex numbers
+	    throw new IOException("TIA_Reader doesn't support SER data type " + dataType);
+	}
+    }
+
+    /*
+     * Decodes values.length values of the given SER data type, starting at the current position of data.
+     */
+    static void decode(final ByteBuffer data, final int dataType, final float[] values) throws IOException {
+	final int n = values.length;
+	switch (dataType) {
+	case 1:
+	    for (int k = 0; k < n; k++)
+		values[k] = data.get() & 0xff;
+	    break;
+	case 2:
+	    for (int k = 0; k < n; k++)
+		values[k] = data.getShort() & 0xffff;
+	    break;
+	case 3:
+	    for (int k = 0; k < n; k++)
+		values[k] = data.getInt() & 0xffffffffL;
+	    break;
+	case 4:
+	    for (int k = 0; k < n; k++)
+		values[k] = data.get();
+	    break;
+	case 5:
+	    for (int k = 0; k < n; k++)
+		values[k] = data.getShort();
+	    break;
+	case 6:
+	    for (int k = 0; k < n; k++)
+		values[k] = data.getInt();
+	    break;
+	case 7:
+	    data.asFloatBuffer().get(values);
+	    data.position(data.position() + 4 * n);
+	    break;
+	case 8:
+	    for (int k = 0; k < n; k++)
+		values[k] = (float) data.getDouble();
+	    break;
+	default:
+	    throw new IOException("TIA_Reader doesn't support SER data type " + dataType);
+	}
+    }
+
+    private static void closeQuietly(final Closeable c) {
+	if (c == null) {
+	    return;
+	}
+	try {
+	    c.close();
+	} catch (final IOException e) {
+	    // nothing left to do
+	}
+    }
+
+    /*
+     * Skips n bytes of a stream, which may be more than skipBytes can skip at once.
+     */
+    private static void skip(final LEDataInputStream data, final long n) throws IOException {
+	long left = n;
+	while (left > 0) {
+	    final int skipped = data.skipBytes((int) Math.min(left, Integer.MAX_VALUE));
+	    if (skipped <= 0) {
+		throw new EOFException("Unexpected end of SER file");
+	    }
+	    left -= skipped;
+	}
+    }
+
+    /*
+     * The fixed part of a SER header. Up to SeriesVersion 0x0210 OffsetArrayOffset and the entries of the offset
+     * array are 32-bit, from 0x0220 on they are 64-bit, which makes the header 34 instead of 30 bytes long.
+     */
+    static final class SerHeader {
+	final int byteOrder;
+	final int seriesVersion;
+	final int dataTypeId;
+	final int validNumberElements;
+	final long offsetArrayOffset;
+	final int numberDimensions;
+
+	SerHeader(final SerFile ser) throws IOException {
+	    final ByteBuffer data = ser.read(0, 30);
+	    byteOrder = data.getShort() & 0xffff; // ByteOrder
+	    data.getShort(); // SeriesID
+	    seriesVersion = data.getShort() & 0xffff; // SeriesVersion
+	    dataTypeId = data.getInt(); // DataTypeID
+	    data.getInt(); // TagTypeID
+	    data.getInt(); // TotalNumberElements
+	    validNumberElements = data.getInt(); // ValidNumberElements
+	    if (isWide()) {
+		offsetArrayOffset = ser.read(22, 8).getLong(); // OffsetArrayOffset
+		numberDimensions = ser.read(30, 4).getInt(); // NumberDimensions
+	    } else {
+		offsetArrayOffset = data.getInt() & 0xffffffffL; // OffsetArrayOffset
+		numberDimensions = data.getInt(); // NumberDimensions
+	    }
+	}
+
+	boolean isWide() {
+	    return seriesVersion >= WIDE_OFFSETS_VERSION;
+	}
+
+	// bytes up to the dimension array
+	int size() {
+	    return isWide() ? 34 : 30;
+	}
+
+	/*
+	 * Reads the entries from, from + 1, ... of the offset array into the same places of offsets.
+	 */
+	void readOffsets(final SerFile ser, final long[] offsets, final int from) throws IOException {
+	    final int count = offsets.length - from;
+	    if (isWide()) {
+		ser.read(offsetArrayOffset + 8L * from, 8 * count).asLongBuffer().get(offsets, from, count);
+	    } else {
+		final ByteBuffer data = ser.read(offsetArrayOffset + 4L * from, 4 * count);
+		for (int n = from; n < offsets.length; n++) {
+		    offsets[n] = data.getInt() & 0xffffffffL;
+		}
+	    }
+	}
+    }
+
+    /*
+     * A SER file opened once for random access. All reads are positional reads on a single FileChannel, so they may
+     * be issued in any order without reopening or skipping through the file. Files given as an http:// URL are copied
+     * to a temporary file first.
+     */
+    static final class SerFile implements Closeable {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final File temp;
+	private final long modified;
+
+	SerFile(final String path) throws IOException {
+	    if (0 == path.indexOf("http://")) {
+		temp = File.createTempFile("csi", ".ser");
+		temp.deleteOnExit();
+		final InputStream is = new java.net.URL(path).openStream();
+		try {
+		    Files.copy(is, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+		    is.close();
+		}
+		file = new RandomAccessFile(temp, "r");
+		modified = 0; // a downloaded copy is only recognized by its size
+	    } else {
+		temp = null;
+		file = new RandomAccessFile(path, "r");
+		modified = new File(path).lastModified();
+	    }
+	    channel = file.getChannel();
+	}
+
+	long size() throws IOException {
+	    return channel.size();
+	}
+
+	long lastModified() {
+	    return modified;
+	}
+
+	/*
+	 * Returns a little-endian buffer holding length bytes starting at position.
+	 */
+	ByteBuffer read(final long position, final int length) throws IOException {
+	    final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	    read(buffer, position);
+	    buffer.flip();
+	    return buffer;
+	}
+
+	/*
+	 * Fills the remaining space of buffer with the bytes starting at position.
+	 */
+	void read(final ByteBuffer buffer, final long position) throws IOException {
+	    long pos = position;
+	    while (buffer.hasRemaining()) {
+		final int n = channel.read(buffer, pos);
+		if (n < 0) {
+		    throw new EOFException("Unexpected end of SER file at byte " + pos);
+		}
+		pos += n;
+	    }
+	}
+
+	@Override
+	public void close() throws IOException {
+	    file.close();
+	    if (temp != null) {
+		temp.delete();
+	    }
+	}
     }
 
 }
@@ -0,0 +1,236 @@
+package edu.cornell.csi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI DM3 Reader.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * The tags of a DM3 or DM4 file as a tree of groups. A tag is kept as its group, its label and its value; numbers are
+ * stored as the bits of the primitive value and only boxed when they are looked up, and the dotted path of a tag is
+ * only written out by toString(), which lists every tag as "path = value" in the order of the file. Labels repeat a
+ * lot between the images of a file, so each distinct label is stored once.
+ */
+class DM3Tags {
+    // type of the values that are not one of the encoded DM3 types: strings and structs, and the sizes and offsets
+    // of arrays that the reader skips
+    private static final int OBJECT = 0;
+    private static final int INT64 = -1;
+
+    /*
+     * A group of tags. The groups and tags in it are found by their label.
+     */
+    static final class Group {
+	final String name;
+	final Group parent;
+	private final HashMap<String, Group> groups = new HashMap<String, Group>();
+	private final HashMap<String, Integer> tags = new HashMap<String, Integer>();
+	private String path;
+
+	Group(final String name, final Group parent) {
+	    this.name = name;
+	    this.parent = parent;
+	}
+
+	// the dotted names of this group and the groups it is in
+	String path() {
+	    if (path == null) {
+		path = parent == null ? name : parent.path() + "." + name;
+	    }
+	    return path;
+	}
+    }
+
+    private final HashMap<String, String> labels = new HashMap<String, String>();
+    // the group that was read last for each group name
+    private final HashMap<String, Group> lastGroupNamed = new HashMap<String, Group>();
+    private final Group root = new Group("root", null);
+
+    // the tags in the order of the file
+    private int size;
+    private Group[] groups = new Group[256];
+    private String[] names = new String[256];
+    private int[] types = new int[256];
+    private long[] values = new long[256];
+    private Object[] objects = new Object[256];
+
+    Group root() {
+	return root;
+    }
+
+    /*
+     * Returns the group name in parent, adding it if it is new.
+     */
+    Group group(final Group parent, final String name) {
+	Group group = parent.groups.get(name);
+	if (group == null) {
+	    group = new Group(label(name), parent);
+	    parent.groups.put(group.name, group);
+	}
+	lastGroupNamed.put(group.name, group);
+	return group;
+    }
+
+    /*
+     * Returns the one stored copy of label.
+     */
+    String label(final String label) {
+	final String stored = labels.get(label);
+	if (stored != null) {
+	    return stored;
+	}
+	labels.put(label, label);
+	return label;
+    }
+
+    /*
+     * Adds a number of one of the encoded DM3 types, given by the bits of its value.
+     */
+    void add(final Group group, final String name, final int encodedType, final long bits) {
+	final int n = append(group, name);
+	types[n] = encodedType;
+	values[n] = bits;
+    }
+
+    void add(final Group group, final String name, final long value) {
+	add(group, name, INT64, value);
+    }
+
+    void add(final Group group, final String name, final String value) {
+	final int n = append(group, name);
+	types[n] = OBJECT;
+	objects[n] = value;
+    }
+
+    private int append(final Group group, final String name) {
+	if (size == groups.length) {
+	    final int length = 2 * size;
+	    groups = Arrays.copyOf(groups, length);
+	    names = Arrays.copyOf(names, length);
+	    types = Arrays.copyOf(types, length);
+	    values = Arrays.copyOf(values, length);
+	    objects = Arrays.copyOf(objects, length);
+	}
+	final String label = label(name);
+	groups[size] = group;
+	names[size] = label;
+	group.tags.put(label, Integer.valueOf(size));
+	return size++;
+    }
+
+    /*
+     * Returns the value of the tag with the given dotted path, e.g. "root.ImageList.1.ImageData.DataType", boxed as
+     * Short, Integer, Float, Double, Boolean, Character, Byte, Long or String, or null if there is no such tag.
+     */
+    Object get(final String path) {
+	final int n = find(path);
+	return n < 0 ? null : value(n);
+    }
+
+    boolean containsKey(final String path) {
+	return find(path) >= 0;
+    }
+
+    /*
+     * Returns the value of the tag label in the group that was read last under the name group, or null.
+     */
+    Object getLast(final String group, final String label) {
+	final Group g = lastGroupNamed.get(group);
+	if (g == null) {
+	    return null;
+	}
+	final Integer n = g.tags.get(label);
+	return n == null ? null : value(n.intValue());
+    }
+
+    private int find(final String path) {
+	if (!path.startsWith(root.name + ".")) {
+	    return -1;
+	}
+	Group group = root;
+	int start = root.name.length() + 1;
+	// descend for as long as the next part of the path names a group; the rest is the label of the tag, which may
+	// itself contain dots
+	int dot = path.indexOf('.', start);
+	while (dot >= 0) {
+	    final Group child = group.groups.get(path.substring(start, dot));
+	    if (child == null) {
+		break;
+	    }
+	    group = child;
+	    start = dot + 1;
+	    dot = path.indexOf('.', start);
+	}
+	final Integer n = group.tags.get(path.substring(start));
+	return n == null ? -1 : n.intValue();
+    }
+
+    private Object value(final int n) {
+	final long bits = values[n];
+	switch (types[n]) {
+	case OBJECT:
+	    return objects[n];
+	case INT64:
+	    return Long.valueOf(bits);
+	case CSI_DM3_Reader.SHORT:
+	case CSI_DM3_Reader.USHORT:
+	    return Short.valueOf((short) bits);
+	case CSI_DM3_Reader.LONG:
+	case CSI_DM3_Reader.ULONG:
+	    return Integer.valueOf((int) bits);
+	case CSI_DM3_Reader.FLOAT:
+	    return Float.valueOf(Float.intBitsToFloat((int) bits));
+	case CSI_DM3_Reader.DOUBLE:
+	    return Double.valueOf(Double.longBitsToDouble(bits));
+	case CSI_DM3_Reader.LLONG:
+	case CSI_DM3_Reader.ULLONG:
+	    return Long.valueOf(bits);
+	case CSI_DM3_Reader.BOOLEAN:
+	    return Boolean.valueOf(bits != 0);
+	case CSI_DM3_Reader.CHAR:
+	    return Character.valueOf((char) bits);
+	default: // OCTET
+	    return Byte.valueOf((byte) bits);
+	}
+    }
+
+    int size() {
+	return size;
+    }
+
+    /*
+     * Lists every tag as "path = value", one per line.
+     */
+    @Override
+    public String toString() {
+	final StringBuilder sb = new StringBuilder(64 * size);
+	for (int n = 0; n < size; n++) {
+	    sb.append(groups[n].path()).append('.').append(names[n]).append(" = ").append(value(n)).append('\n');
+	}
+	return sb.toString();
+    }
+}
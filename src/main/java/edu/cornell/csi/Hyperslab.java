@@ -0,0 +1,172 @@
+package edu.cornell.csi;
+
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI DM3 Reader.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * The part of a spectrum image that the readers load: a rectangle of pixels and a range of energy channels. x, y and
+ * z are the first pixel column, row and channel; width, height and depth count the pixels and channels to load.
+ * binX, binY and binZ sum that many columns, rows and channels into one value while the data is decoded; a remainder
+ * that does not fill a whole bin is left out.
+ */
+public class Hyperslab {
+    public int x, y, z;
+    public int width, height, depth;
+    public int binX = 1, binY = 1, binZ = 1;
+
+    public Hyperslab(final int x, final int y, final int z, final int width, final int height, final int depth) {
+	this.x = x;
+	this.y = y;
+	this.z = z;
+	this.width = width;
+	this.height = height;
+	this.depth = depth;
+    }
+
+    /*
+     * Returns the whole of a width x height x depth data set.
+     */
+    public static Hyperslab all(final int width, final int height, final int depth) {
+	return new Hyperslab(0, 0, 0, width, height, depth);
+    }
+
+    /*
+     * Sets the binning factors and returns this region.
+     */
+    public Hyperslab bin(final int binX, final int binY, final int binZ) {
+	this.binX = Math.max(1, binX);
+	this.binY = Math.max(1, binY);
+	this.binZ = Math.max(1, binZ);
+	return this;
+    }
+
+    public boolean isBinned() {
+	return binX > 1 || binY > 1 || binZ > 1;
+    }
+
+    // the size of the loaded data after binning
+    public int binnedWidth() {
+	return width / binX;
+    }
+
+    public int binnedHeight() {
+	return height / binY;
+    }
+
+    public int binnedDepth() {
+	return depth / binZ;
+    }
+
+    /*
+     * Returns true if this is the whole of a width x height x depth data set, without binning.
+     */
+    public boolean covers(final int width, final int height, final int depth) {
+	return x == 0 && y == 0 && z == 0 && this.width == width && this.height == height && this.depth == depth
+		&& !isBinned();
+    }
+
+    /*
+     * Returns the part of this region that lies inside a width x height x depth data set, or null if nothing does.
+     */
+    public Hyperslab clip(final int width, final int height, final int depth) {
+	final int x0 = Math.max(0, x), y0 = Math.max(0, y), z0 = Math.max(0, z);
+	final int x1 = Math.min(width, x + this.width);
+	final int y1 = Math.min(height, y + this.height);
+	final int z1 = Math.min(depth, z + this.depth);
+	if (x1 <= x0 || y1 <= y0 || z1 <= z0)
+	    return null;
+	// a bin can not be larger than the region
+	return new Hyperslab(x0, y0, z0, x1 - x0, y1 - y0, z1 - z0).bin(Math.min(binX, x1 - x0),
+		Math.min(binY, y1 - y0), Math.min(binZ, z1 - z0));
+    }
+
+    /*
+     * Adapts cal to the loaded data, so that calibrated positions match those of the whole data set. A binned pixel
+     * is placed at the centre of the pixels it sums.
+     */
+    public void calibrate(final Calibration cal) {
+	cal.xOrigin = (cal.xOrigin - x - (binX - 1) / 2.0) / binX;
+	cal.yOrigin = (cal.yOrigin - y - (binY - 1) / 2.0) / binY;
+	cal.zOrigin = (cal.zOrigin - z - (binZ - 1) / 2.0) / binZ;
+	cal.pixelWidth *= binX;
+	cal.pixelHeight *= binY;
+	cal.pixelDepth *= binZ;
+    }
+
+    /*
+     * Adds the fields for a region of a width x height x depth data set to gd. The energy range is entered in the
+     * units of cal, whose zOrigin and pixelDepth give the energy of each channel.
+     */
+    static void addFields(final GenericDialog gd, final int width, final int height, final int depth,
+	    final Calibration cal) {
+	gd.addNumericField("x", 0, 0, 6, "pixels");
+	gd.addNumericField("y", 0, 0, 6, "pixels");
+	gd.addNumericField("width", width, 0, 6, "pixels");
+	gd.addNumericField("height", height, 0, 6, "pixels");
+	gd.addNumericField("energy_from", energy(0, cal), 2, 8, cal.getZUnit());
+	gd.addNumericField("energy_to", energy(depth - 1, cal), 2, 8, cal.getZUnit());
+	gd.addNumericField("bin_x", 1, 0, 6, "pixels");
+	gd.addNumericField("bin_y", 1, 0, 6, "pixels");
+	gd.addNumericField("bin_energy", 1, 0, 6, "channels");
+    }
+
+    /*
+     * Reads back the fields added by addFields and returns the region they describe, clipped to the data set.
+     */
+    static Hyperslab readFields(final GenericDialog gd, final int width, final int height, final int depth,
+	    final Calibration cal) {
+	final int x = (int) gd.getNextNumber();
+	final int y = (int) gd.getNextNumber();
+	final int w = (int) gd.getNextNumber();
+	final int h = (int) gd.getNextNumber();
+	int first = channel(gd.getNextNumber(), cal);
+	int last = channel(gd.getNextNumber(), cal);
+	if (first > last) {
+	    final int swap = first;
+	    first = last;
+	    last = swap;
+	}
+	final int binX = (int) gd.getNextNumber();
+	final int binY = (int) gd.getNextNumber();
+	final int binZ = (int) gd.getNextNumber();
+	return new Hyperslab(x, y, first, w, h, last - first + 1).bin(binX, binY, binZ).clip(width, height, depth);
+    }
+
+    private static double energy(final int channel, final Calibration cal) {
+	return (channel - cal.zOrigin) * scale(cal);
+    }
+
+    private static int channel(final double energy, final Calibration cal) {
+	return (int) Math.round(energy / scale(cal) + cal.zOrigin);
+    }
+
+    private static double scale(final Calibration cal) {
+	return cal.pixelDepth != 0 ? cal.pixelDepth : 1;
+    }
+}
@@ -0,0 +1,208 @@
+package edu.cornell.csi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI TIA Reader.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * A read-only stack of planes that are stored one after the other in a file, as in the plane cache of the TIA reader
+ * or the image data of a DM3/DM4 spectrum image. Every plane is memory-mapped when the stack is created and only
+ * decoded into a 32-bit pixel array when ImageJ asks for it, so the stack can be larger than the heap and opening it
+ * costs next to nothing. The planes decoded last are kept, up to a small part of the heap. ImageJ gets a copy of a
+ * kept plane, so changing the pixels of a slice that is shown leaves the kept plane as it was read; the passes of the
+ * analyzer, which only read the planes, use the kept planes themselves.
+ */
+class MappedVirtualStack extends VirtualStack {
+    // most decoded planes that are kept, whatever their size
+    private static final int MAX_CACHED_PLANES = 64;
+
+    private final ByteBuffer[] planes;
+    private final String[] labels;
+    private final int fileType;
+    private final ByteOrder order;
+    // decoded planes by slice number, the least recently used first
+    private final Map<Integer, float[]> decoded;
+
+    /*
+     * A stack of 32-bit little-endian float planes.
+     */
+    MappedVirtualStack(final File file, final long offset, final int width, final int height, final String[] labels)
+	    throws IOException {
+	this(file, offset, width, height, labels, FileInfo.GRAY32_FLOAT, true);
+    }
+
+    /*
+     * A stack of labels.length planes of the given FileInfo type, e.g. GRAY16_UNSIGNED, starting at offset.
+     */
+    MappedVirtualStack(final File file, final long offset, final int width, final int height, final String[] labels,
+	    final int fileType, final boolean intelByteOrder) throws IOException {
+	super(width, height, null, file.getParent());
+	if (!supports(fileType)) {
+	    throw new IOException("A virtual stack is not supported for this data type");
+	}
+	this.labels = labels;
+	this.fileType = fileType;
+	order = intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	planes = new ByteBuffer[labels.length];
+	final long planeBytes = (long) bytesPerPixel(fileType) * width * height;
+	final RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    // the mappings stay valid after the file has been closed
+	    final FileChannel channel = raf.getChannel();
+	    for (int k = 0; k < planes.length; k++) {
+		planes[k] = channel.map(FileChannel.MapMode.READ_ONLY, offset + k * planeBytes, planeBytes);
+	    }
+	} finally {
+	    raf.close();
+	}
+	final long budget = Runtime.getRuntime().maxMemory() / 16 / (4L * width * height);
+	final int capacity = (int) Math.max(1, Math.min(MAX_CACHED_PLANES, budget));
+	decoded = new LinkedHashMap<Integer, float[]>(2 * capacity, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(final Map.Entry<Integer, float[]> eldest) {
+		return size() > capacity;
+	    }
+	};
+    }
+
+    /*
+     * Returns true if planes of the given FileInfo type can be decoded.
+     */
+    static boolean supports(final int fileType) {
+	return bytesPerPixel(fileType) > 0;
+    }
+
+    private static int bytesPerPixel(final int fileType) {
+	switch (fileType) {
+	case FileInfo.GRAY8:
+	    return 1;
+	case FileInfo.GRAY16_SIGNED:
+	case FileInfo.GRAY16_UNSIGNED:
+	    return 2;
+	case FileInfo.GRAY32_INT:
+	case FileInfo.GRAY32_UNSIGNED:
+	case FileInfo.GRAY32_FLOAT:
+	    return 4;
+	default:
+	    return 0;
+	}
+    }
+
+    /*
+     * Returns the pixels of slice n of stack for a caller that does not change them: the kept plane itself if stack is
+     * a MappedVirtualStack, whatever getPixels() returns otherwise.
+     */
+    static Object pixelsForReading(final ImageStack stack, final int n) {
+	if (stack instanceof MappedVirtualStack) {
+	    return ((MappedVirtualStack) stack).decode(n);
+	}
+	return stack.getPixels(n);
+    }
+
+    /*
+     * Returns a processor of slice n of stack for a caller that does not change its pixels, which are those of
+     * pixelsForReading().
+     */
+    static ImageProcessor processorForReading(final ImageStack stack, final int n) {
+	if (stack instanceof MappedVirtualStack) {
+	    return new FloatProcessor(stack.getWidth(), stack.getHeight(), ((MappedVirtualStack) stack).decode(n));
+	}
+	return stack.getProcessor(n);
+    }
+
+    @Override
+    public Object getPixels(final int n) {
+	return decode(n).clone();
+    }
+
+    // the kept plane of slice n, decoded first if it is not kept
+    private synchronized float[] decode(final int n) {
+	final Integer key = Integer.valueOf(n);
+	float[] pixels = decoded.get(key);
+	if (pixels == null) {
+	    pixels = new float[getWidth() * getHeight()];
+	    try {
+		CSI_DM3_Reader.decodePixels(planes[n - 1].duplicate().order(order), fileType, pixels, 0);
+	    } catch (final IOException e) {
+		// the type has been checked when the stack was created
+		throw new IllegalStateException(e);
+	    }
+	    decoded.put(key, pixels);
+	}
+	return pixels;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(final int n) {
+	return new FloatProcessor(getWidth(), getHeight(), (float[]) getPixels(n));
+    }
+
+    @Override
+    public void setPixels(final Object pixels, final int n) {
+	// the planes are read-only
+    }
+
+    @Override
+    public int getSize() {
+	return labels.length;
+    }
+
+    @Override
+    public int size() {
+	return labels.length;
+    }
+
+    @Override
+    public String getSliceLabel(final int n) {
+	return labels[n - 1];
+    }
+
+    @Override
+    public void setSliceLabel(final String label, final int n) {
+	labels[n - 1] = label;
+    }
+
+    @Override
+    public int getBitDepth() {
+	return 32;
+    }
+}
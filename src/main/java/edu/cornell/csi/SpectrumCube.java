@@ -0,0 +1,322 @@
+package edu.cornell.csi;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI Spectrum Analyzer.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * A pixel-interleaved copy of a spectrum image, in which the spectrum of each pixel is stored in one piece. Reading a
+ * spectrum from the stack touches one array per energy channel, here it is a single run of floats. The copy is
+ * written by a background thread once the spectrum image is opened and is only used when it is complete; until then
+ * the spectra are read from the stack as before. It is held in memory if there is plenty of it, otherwise in a
+ * memory-mapped temporary file that is deleted when the copy is closed. The values are calibrated with the
+ * calibration table of the image, as ImageProcessor.getPixelValue() does. The copy belongs to the stack and the
+ * calibration table it was made from and must not be used once the image has another one of either.
+ */
+class SpectrumCube {
+    // Planes fetched from the stack for one pass over the copy, at most this many bytes of them
+    private static final int PASS_BYTES = 1 << 26;
+    // Pixels that a task copies at least, so that short rows are not split into tiny tasks
+    private static final int TASK_PIXELS = 1 << 14;
+
+    private final ImageStack stack;
+    private final float[] cTable;
+    private final int width, height, depth;
+    // the spectra of each row of pixels, one after the other
+    private final FloatBuffer[] rows;
+    private final RandomAccessFile sidecar;
+    private final File sidecarFile;
+    private volatile boolean ready, closed, released;
+
+    private SpectrumCube(final ImagePlus imp) throws IOException {
+	stack = imp.getStack();
+	cTable = imp.getCalibration().getCTable();
+	width = stack.getWidth();
+	height = stack.getHeight();
+	depth = stack.getSize();
+	rows = new FloatBuffer[height];
+	final long rowSize = (long) width * depth;
+	if (4 * rowSize > Integer.MAX_VALUE) {
+	    throw new IOException("A row of " + width + " spectra of " + depth + " channels is too long");
+	}
+	final long bytes = 4 * rowSize * height;
+	if (bytes < (IJ.maxMemory() - IJ.currentMemory()) / 4) {
+	    sidecar = null;
+	    sidecarFile = null;
+	    for (int j = 0; j < height; j++) {
+		rows[j] = FloatBuffer.wrap(new float[(int) rowSize]);
+	    }
+	} else {
+	    sidecarFile = File.createTempFile("csi", ".bip");
+	    sidecarFile.deleteOnExit();
+	    sidecar = new RandomAccessFile(sidecarFile, "rw");
+	    try {
+		sidecar.setLength(bytes);
+		final FileChannel channel = sidecar.getChannel();
+		for (int j = 0; j < height; j++) {
+		    rows[j] = channel.map(FileChannel.MapMode.READ_WRITE, 4 * rowSize * j, 4 * rowSize)
+			    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	    } catch (final IOException e) {
+		release();
+		throw e;
+	    }
+	}
+    }
+
+    /*
+     * Starts writing the pixel-interleaved copy of the spectrum image imp in the background. Returns null if imp is
+     * not a stack, is an RGB stack, is a virtual stack or the copy can not be made, in which case the spectra have to
+     * be read from the stack. A virtual stack is left alone, since it is read from disk on demand so as not to fill
+     * the memory, and a copy would have to go to a temporary file of the same size.
+     */
+    static SpectrumCube start(final ImagePlus imp) {
+	if (imp.getStackSize() < 2 || imp.getBitDepth() == 24 || imp.getStack().isVirtual()) {
+	    return null;
+	}
+	final SpectrumCube cube;
+	try {
+	    cube = new SpectrumCube(imp);
+	} catch (final IOException e) {
+	    IJ.log("CSI: spectra of " + imp.getTitle() + " are read from the stack: " + e.getMessage());
+	    return null;
+	}
+	final Thread builder = new Thread("CSI spectrum cube " + imp.getTitle()) {
+	    @Override
+	    public void run() {
+		cube.build();
+	    }
+	};
+	builder.setDaemon(true);
+	builder.setPriority(Thread.MIN_PRIORITY);
+	builder.start();
+	return cube;
+    }
+
+    /*
+     * Stops using the copy and frees it. A copy that is still being written is abandoned.
+     */
+    void close() {
+	closed = true;
+	ready = false;
+	release();
+    }
+
+    /*
+     * Returns true if the copy was made from the current stack and calibration table of imp.
+     */
+    boolean matches(final ImagePlus imp) {
+	return imp.getStack() == stack && imp.getCalibration().getCTable() == cTable && stack.getSize() == depth
+		&& stack.getWidth() == width && stack.getHeight() == height;
+    }
+
+    /*
+     * Fills values with the spectrum of pixel (x, y). Returns false if the copy is not complete yet or (x, y) is
+     * outside of the image.
+     */
+    boolean spectrum(final int x, final int y, final double[] values) {
+	if (!ready || x < 0 || y < 0 || x >= width || y >= height || values.length != depth) {
+	    return false;
+	}
+	final FloatBuffer row = rows[y];
+	if (row == null) {
+	    return false;
+	}
+	final int base = x * depth;
+	for (int k = 0; k < depth; k++) {
+	    values[k] = row.get(base + k);
+	}
+	return true;
+    }
+
+    /*
+     * Fills values with the mean spectrum of the pixels inside roi, which has to be an area. Returns false if the
+     * copy is not complete yet, roi is not an area or no pixel of the image is inside it.
+     */
+    boolean mean(final Roi roi, final double[] values) {
+	if (!ready || !roi.isArea() || values.length != depth) {
+	    return false;
+	}
+	final Rectangle r = roi.getBounds();
+	final ImageProcessor mask = roi.getMask();
+	final int x0 = Math.max(0, r.x), x1 = Math.min(width, r.x + r.width);
+	final int y0 = Math.max(0, r.y), y1 = Math.min(height, r.y + r.height);
+	Arrays.fill(values, 0);
+	long count = 0;
+	for (int j = y0; j < y1; j++) {
+	    final FloatBuffer row = rows[j];
+	    if (row == null) {
+		return false;
+	    }
+	    for (int i = x0; i < x1; i++) {
+		if (mask != null && mask.get(i - r.x, j - r.y) == 0) {
+		    continue;
+		}
+		final int base = i * depth;
+		for (int k = 0; k < depth; k++) {
+		    values[k] += row.get(base + k);
+		}
+		count++;
+	    }
+	}
+	if (count == 0) {
+	    return false;
+	}
+	for (int k = 0; k < depth; k++) {
+	    values[k] /= count;
+	}
+	return true;
+    }
+
+    /*
+     * Writes the copy. The planes are fetched from the stack a few at a time, as many as fit into PASS_BYTES, and
+     * each pass fills the channels of those planes for every pixel, splitting the rows between as many threads as
+     * ImageJ may use.
+     */
+    private void build() {
+	final int perPass = (int) Math.max(1, Math.min(depth, PASS_BYTES / (4L * width * height)));
+	final float[][] planes = new float[perPass][];
+	final int threads = Prefs.getThreads();
+	final ForkJoinPool pool = threads < 2 ? null : new ForkJoinPool(threads);
+	try {
+	    for (int k0 = 0; k0 < depth && !closed; k0 += perPass) {
+		final int count = Math.min(perPass, depth - k0);
+		for (int b = 0; b < count; b++) {
+		    planes[b] = calibratedPixels(stack, k0 + b + 1, cTable);
+		}
+		final CopyTask task = new CopyTask(planes, k0, count, 0, height);
+		if (pool == null) {
+		    task.copy();
+		} else {
+		    pool.invoke(task);
+		}
+	    }
+	    ready = !closed;
+	} catch (final RuntimeException e) {
+	    // the stack has changed or was closed meanwhile, so the spectra stay with the stack
+	    IJ.log("CSI: spectra are read from the stack: " + e);
+	} finally {
+	    if (pool != null) {
+		pool.shutdown();
+	    }
+	}
+    }
+
+    /*
+     * Returns the values of slice n of stack, calibrated with cTable as ImageProcessor.getPixelValue() does. The
+     * pixels of a float slice are returned as they are, not copied.
+     */
+    static float[] calibratedPixels(final ImageStack stack, final int n, final float[] cTable) {
+	final Object pixels = MappedVirtualStack.pixelsForReading(stack, n);
+	if (pixels instanceof float[]) {
+	    return (float[]) pixels;
+	}
+	final ImageProcessor ip = stack.getProcessor(n);
+	final float[] values = new float[ip.getPixelCount()];
+	for (int i = 0; i < values.length; i++) {
+	    final float v = ip.getf(i);
+	    values[i] = cTable == null ? v : cTable[(int) v];
+	}
+	return values;
+    }
+
+    /*
+     * Copies the channels first to first + count - 1 of the rows from to to - 1 out of the planes.
+     */
+    private class CopyTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final float[][] planes;
+	private final int first, count, from, to;
+
+	CopyTask(final float[][] planes, final int first, final int count, final int from, final int to) {
+	    this.planes = planes;
+	    this.first = first;
+	    this.count = count;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+	    if (to - from < 2 || (long) (to - from) * width < 2 * TASK_PIXELS) {
+		copy();
+		return;
+	    }
+	    final int middle = (from + to) >>> 1;
+	    invokeAll(new CopyTask(planes, first, count, from, middle), new CopyTask(planes, first, count, middle, to));
+	}
+
+	void copy() {
+	    for (int j = from; j < to && !closed; j++) {
+		final FloatBuffer row = rows[j];
+		if (row == null) {
+		    return;
+		}
+		// the channels of one pass lie next to each other in every spectrum
+		for (int i = 0; i < width; i++) {
+		    final int base = i * depth + first;
+		    final int pixel = j * width + i;
+		    for (int b = 0; b < count; b++) {
+			row.put(base + b, planes[b][pixel]);
+		    }
+		}
+	    }
+	}
+    }
+
+    private synchronized void release() {
+	if (released) {
+	    return;
+	}
+	released = true;
+	Arrays.fill(rows, null);
+	if (sidecar != null) {
+	    try {
+		sidecar.close();
+	    } catch (final IOException e) {
+		// nothing left to do with the file
+	    }
+	    sidecarFile.delete();
+	}
+    }
+}
@@ -0,0 +1,149 @@
+package edu.cornell.csi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 2.0
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is CSI Spectrum Analyzer.
+ *
+ * The Initial Developer of the Original Code is
+ * Paul Cueva <pdc23@cornell.edu>, Cornell University.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Paul Cueva <pdc23@cornell.edu>
+ *   Robert Hovden <rmh244@cornell.edu>
+ *   David A. Muller <david.a.muller@cornell.edu>
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/*
+ * A pass over some energy channels of a spectrum image, in which every pixel is given its channels in order. The
+ * pixels are split into tiles of TILE_PIXELS consecutive pixels, which are handled on as many threads as ImageJ may
+ * use. A tile goes through all channels of a pass before the next tile is started, so whatever is accumulated for
+ * its pixels stays in the cache, and since each pixel still sees its channels one after the other, the result is the
+ * same as that of a serial loop. The slices of a virtual stack are loaded a few at a time, as many as fit into
+ * PASS_BYTES; all other stacks are done in a single pass.
+ */
+abstract class StackSweep {
+    // Bytes of the slices of a virtual stack that are loaded for one pass
+    private static final int PASS_BYTES = 1 << 26;
+    // Pixels in a tile, small enough that a few arrays of accumulators for them fit into the L2 cache
+    static final int TILE_PIXELS = 1 << 12;
+
+    /*
+     * Adds channel k, the n-th channel of the run, to the pixels from to to - 1; the values of the channel are the
+     * pixels of ip. Called for the tiles of a pass at the same time, from different threads, and for each tile with
+     * n counting up from 0.
+     */
+    protected abstract void add(int n, int k, ImageProcessor ip, int from, int to);
+
+    /*
+     * Runs over the channels start to end - 1, i.e. the slices start + 1 to end of stack.
+     */
+    void run(final ImageStack stack, final int start, final int end) {
+	final int[] channels = new int[Math.max(0, end - start)];
+	for (int k = 0; k < channels.length; k++) {
+	    channels[k] = start + k;
+	}
+	run(stack, channels);
+    }
+
+    /*
+     * Runs over the given channels, in the order given. A channel may be given more than once.
+     */
+    void run(final ImageStack stack, final int[] channels) {
+	final int pixels = stack.getWidth() * stack.getHeight();
+	int perPass = channels.length;
+	if (stack.isVirtual()) {
+	    final long sliceBytes = Math.max(1L, (long) pixels * stack.getBitDepth() / 8);
+	    perPass = (int) Math.max(1, Math.min(channels.length, PASS_BYTES / sliceBytes));
+	}
+	final int threads = Prefs.getThreads();
+	final ForkJoinPool pool = threads < 2 || pixels <= TILE_PIXELS ? null : new ForkJoinPool(threads);
+	try {
+	    for (int first = 0; first < channels.length; first += perPass) {
+		final int count = Math.min(perPass, channels.length - first);
+		final ImageProcessor[] planes = new ImageProcessor[count];
+		for (int b = 0; b < count; b++) {
+		    // a channel that is given again is not loaded again
+		    for (int c = 0; c < b && planes[b] == null; c++) {
+			if (channels[first + c] == channels[first + b]) {
+			    planes[b] = planes[c];
+			}
+		    }
+		    if (planes[b] == null) {
+			planes[b] = MappedVirtualStack.processorForReading(stack, channels[first + b] + 1);
+		    }
+		}
+		if (pool == null) {
+		    for (int from = 0; from < pixels; from += TILE_PIXELS) {
+			addTile(channels, first, planes, from, Math.min(pixels, from + TILE_PIXELS));
+		    }
+		} else {
+		    pool.invoke(new TileTask(channels, first, planes, 0, pixels));
+		}
+	    }
+	} finally {
+	    if (pool != null) {
+		pool.shutdown();
+	    }
+	}
+    }
+
+    // adds the channels first to first + planes.length - 1 of the run, the values of which are planes
+    private void addTile(final int[] channels, final int first, final ImageProcessor[] planes, final int from,
+	    final int to) {
+	for (int b = 0; b < planes.length; b++) {
+	    add(first + b, channels[first + b], planes[b], from, to);
+	}
+    }
+
+    /*
+     * Splits the pixels from to to - 1 into tiles.
+     */
+    private class TileTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final int[] channels;
+	private final int first;
+	private final ImageProcessor[] planes;
+	private final int from, to;
+
+	TileTask(final int[] channels, final int first, final ImageProcessor[] planes, final int from,
+		final int to) {
+	    this.channels = channels;
+	    this.first = first;
+	    this.planes = planes;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+	    if (to - from <= TILE_PIXELS) {
+		addTile(channels, first, planes, from, to);
+		return;
+	    }
+	    // split at a tile boundary, so that the tiles are the same as in a serial run
+	    final int middle = from + ((to - from) / TILE_PIXELS + 1) / 2 * TILE_PIXELS;
+	    invokeAll(new TileTask(channels, first, planes, from, middle),
+		    new TileTask(channels, first, planes, middle, to));
+	}
+    }
+}